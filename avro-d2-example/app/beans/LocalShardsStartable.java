@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.avro.ipc.Responder;
+import org.apache.avro.ipc.specific.SpecificResponder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import controllers.protocols.shards.PointShard;
+import me.tfeng.toolbox.spring.ExtendedStartable;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Starts additional point shards in this process, each serving the PointShard protocol on its own port, and registers
+ * them in ZooKeeper, so that a sharded service can be tried and tested on one machine. The shards share a pool of
+ * {@code avro-d2-example.local-shard-threads} threads. If a shard cannot be started, the shards started before it are
+ * stopped and unregistered.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+public class LocalShardsStartable implements ExtendedStartable {
+
+  private static final String CONTENT_TYPE = "avro/binary";
+
+  private static final ALogger LOG = Logger.of(LocalShardsStartable.class);
+
+  private static final String PATH = "/shard";
+
+  private ExecutorService executor;
+
+  @Value("${avro-d2-example.local-shard-port}")
+  private int firstPort;
+
+  @Value("${avro-d2-example.local-shard-threads:4}")
+  private int localShardThreads;
+
+  @Value("${avro-d2-example.local-shards}")
+  private int localShards;
+
+  private final List<String> registrations = new ArrayList<>();
+
+  @Value("${play-mods.avro-d2.server-host}")
+  private String serverHost;
+
+  private final List<HttpServer> servers = new ArrayList<>();
+
+  @Autowired
+  private ShardRegistry shardRegistry;
+
+  @Override
+  public void afterStart() {
+    if (localShards <= 0) {
+      return;
+    }
+    executor = Executors.newFixedThreadPool(localShardThreads);
+    for (int i = 0; i < localShards; i++) {
+      Responder responder = new SpecificResponder(PointShard.class, new PointShardImpl());
+      try {
+        HttpServer server = HttpServer.create(new InetSocketAddress(firstPort + i), 0);
+        server.createContext(PATH, exchange -> respond(responder, exchange));
+        server.setExecutor(executor);
+        server.start();
+        servers.add(server);
+
+        String url = "http://" + serverHost + ":" + (firstPort + i) + PATH;
+        registrations.add(shardRegistry.register(url));
+        LOG.info("Started local shard at " + url);
+      } catch (Exception e) {
+        stopShards();
+        throw new RuntimeException("Unable to start local shard on port " + (firstPort + i), e);
+      }
+    }
+  }
+
+  @Override
+  public void afterStop() {
+  }
+
+  @Override
+  public void beforeStart() {
+  }
+
+  @Override
+  public void beforeStop() {
+    stopShards();
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+  }
+
+  private List<ByteBuffer> readBuffers(InputStream input) throws IOException {
+    DataInputStream dataInput = new DataInputStream(input);
+    List<ByteBuffer> buffers = new ArrayList<>();
+    for (int length = dataInput.readInt(); length > 0; length = dataInput.readInt()) {
+      byte[] buffer = new byte[length];
+      dataInput.readFully(buffer);
+      buffers.add(ByteBuffer.wrap(buffer));
+    }
+    return buffers;
+  }
+
+  private void respond(Responder responder, HttpExchange exchange) throws IOException {
+    try {
+      List<ByteBuffer> response = responder.respond(readBuffers(exchange.getRequestBody()));
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream output = exchange.getResponseBody()) {
+        writeBuffers(response, output);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void stopShards() {
+    for (String registration : registrations) {
+      try {
+        shardRegistry.unregister(registration);
+      } catch (Exception e) {
+        LOG.warn("Unable to unregister local shard at " + registration, e);
+      }
+    }
+    registrations.clear();
+    servers.forEach(server -> server.stop(0));
+    servers.clear();
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  private void writeBuffers(List<ByteBuffer> buffers, OutputStream output) throws IOException {
+    DataOutputStream dataOutput = new DataOutputStream(output);
+    for (ByteBuffer buffer : buffers) {
+      dataOutput.writeInt(buffer.remaining());
+      dataOutput.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    dataOutput.writeInt(0);
+    dataOutput.flush();
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.stereotype.Component;
+
+import controllers.protocols.shards.Point;
+import controllers.protocols.shards.PointShard;
+import controllers.protocols.shards.ShardStatus;
+
+/**
+ * One shard of the points, kept in memory in two primitive arrays of coordinates along with their bounding box. The
+ * nearest points are found by scanning all the points of the shard.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component("pointShard")
+public class PointShardImpl implements PointShard {
+
+  /**
+   * The k nearest points found so far, in a binary max-heap of squared distances and indexes, with the farthest point
+   * at the root. Points at equal distance are ordered by index.
+   */
+  private static class Neighbors {
+
+    private final double[] distances;
+
+    private final int[] indexes;
+
+    private int size;
+
+    public Neighbors(int k) {
+      distances = new double[k];
+      indexes = new int[k];
+    }
+
+    public void offer(double distance, int index) {
+      if (size < distances.length) {
+        siftUp(size++, distance, index);
+      } else if (size > 0 && distance < distances[0]) {
+        siftDown(0, distance, index);
+      }
+    }
+
+    public Point[] toPoints(double[] xs, double[] ys) {
+      Point[] points = new Point[size];
+      for (int i = points.length - 1; i >= 0; i--) {
+        int index = indexes[0];
+        size--;
+        if (size > 0) {
+          siftDown(0, distances[size], indexes[size]);
+        }
+        points[i] = Point.newBuilder().setX(xs[index]).setY(ys[index]).build();
+      }
+      return points;
+    }
+
+    private boolean isNearer(double distance, int index, int slot) {
+      return distance < distances[slot] || distance == distances[slot] && index < indexes[slot];
+    }
+
+    private void siftDown(int slot, double distance, int index) {
+      int half = size >>> 1;
+      while (slot < half) {
+        int child = slot * 2 + 1;
+        if (child + 1 < size && isNearer(distances[child], indexes[child], child + 1)) {
+          child++;
+        }
+        if (!isNearer(distance, index, child)) {
+          break;
+        }
+        distances[slot] = distances[child];
+        indexes[slot] = indexes[child];
+        slot = child;
+      }
+      distances[slot] = distance;
+      indexes[slot] = index;
+    }
+
+    private void siftUp(int slot, double distance, int index) {
+      while (slot > 0) {
+        int parent = (slot - 1) >>> 1;
+        if (isNearer(distance, index, parent)) {
+          break;
+        }
+        distances[slot] = distances[parent];
+        indexes[slot] = indexes[parent];
+        slot = parent;
+      }
+      distances[slot] = distance;
+      indexes[slot] = index;
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private double maxX;
+
+  private double maxY;
+
+  private double minX;
+
+  private double minY;
+
+  private int size;
+
+  private double[] xs;
+
+  private double[] ys;
+
+  public PointShardImpl() {
+    reset();
+  }
+
+  @Override
+  public Void addPoints(List<Point> points) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      if (size + points.size() > xs.length) {
+        int capacity = Math.max(xs.length * 2, size + points.size());
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+      }
+      for (Point point : points) {
+        xs[size] = point.getX();
+        ys[size] = point.getY();
+        minX = Math.min(minX, point.getX());
+        minY = Math.min(minY, point.getY());
+        maxX = Math.max(maxX, point.getX());
+        maxY = Math.max(maxY, point.getY());
+        size++;
+      }
+      return null;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public Void clear() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      reset();
+      return null;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the k nearest points whose squared distances from the origin are at most maxDistanceSquare, nearest first.
+   */
+  @Override
+  public List<Point> getNearestPoints(Point from, int k, double maxDistanceSquare) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      Neighbors neighbors = new Neighbors(Math.max(Math.min(k, size), 0));
+      for (int i = 0; i < size; i++) {
+        double xDistance = from.getX() - xs[i];
+        double yDistance = from.getY() - ys[i];
+        double distance = xDistance * xDistance + yDistance * yDistance;
+        if (distance <= maxDistanceSquare) {
+          neighbors.offer(distance, i);
+        }
+      }
+      return Arrays.asList(neighbors.toPoints(xs, ys));
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of points and their bounding box, which is empty (with minimums greater than maximums) if there
+   * are no points.
+   */
+  @Override
+  public ShardStatus getStatus() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return ShardStatus.newBuilder().setSize(size).setMinX(minX).setMinY(minY).setMaxX(maxX).setMaxY(maxY).build();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private void reset() {
+    xs = new double[INITIAL_CAPACITY];
+    ys = new double[INITIAL_CAPACITY];
+    size = 0;
+    minX = Double.POSITIVE_INFINITY;
+    minY = Double.POSITIVE_INFINITY;
+    maxX = Double.NEGATIVE_INFINITY;
+    maxY = Double.NEGATIVE_INFINITY;
+  }
+}
@@ -0,0 +1,395 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import controllers.protocols.KTooLargeError;
+import controllers.protocols.Point;
+import controllers.protocols.PointsClient;
+import controllers.protocols.shards.PointShardClient;
+import controllers.protocols.shards.ShardStatus;
+import me.tfeng.playmods.avro.AvroComponent;
+import me.tfeng.toolbox.spring.ExtendedStartable;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Partitions the points among the shards registered in ZooKeeper by the Z-order of their coordinates, so that each
+ * shard holds points that are close to each other. A query for the nearest points is first sent to the shard whose
+ * bounding box is nearest to the given point, and then only to the shards whose bounding boxes are nearer than the k-th
+ * point found there.
+ *
+ * <p>The bounding boxes are kept here, so a query does not ask the shards for them. A box grows with the points sent
+ * to its shard, and is emptied when the shard is cleared. Every {@code avro-d2-example.shard-status-interval-ms}, the
+ * status of each shard is read and its box is extended to the points added by other coordinators. The box of a shard
+ * whose status has not been read yet is unknown, and the shard is always queried.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component("points")
+public class PointsCoordinator implements ExtendedStartable, PointsClient {
+
+  private static class Shard {
+
+    private final PointShardClient client;
+
+    private boolean known;
+
+    private double maxX = Double.NEGATIVE_INFINITY;
+
+    private double maxY = Double.NEGATIVE_INFINITY;
+
+    private double minX = Double.POSITIVE_INFINITY;
+
+    private double minY = Double.POSITIVE_INFINITY;
+
+    public Shard(PointShardClient client) {
+      this.client = client;
+    }
+
+    public synchronized void add(List<controllers.protocols.shards.Point> points) {
+      for (controllers.protocols.shards.Point point : points) {
+        extend(point.getX(), point.getY(), point.getX(), point.getY());
+      }
+    }
+
+    public synchronized void clear() {
+      known = true;
+      minX = Double.POSITIVE_INFINITY;
+      minY = Double.POSITIVE_INFINITY;
+      maxX = Double.NEGATIVE_INFINITY;
+      maxY = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Returns the squared distance from the point to the bounding box, which is 0 while the box is unknown.
+     */
+    public synchronized double getBoxDistanceSquare(controllers.protocols.shards.Point point) {
+      if (!known) {
+        return 0.0;
+      }
+      double xDistance = Math.max(Math.max(minX - point.getX(), point.getX() - maxX), 0.0);
+      double yDistance = Math.max(Math.max(minY - point.getY(), point.getY() - maxY), 0.0);
+      return xDistance * xDistance + yDistance * yDistance;
+    }
+
+    public synchronized boolean isEmpty() {
+      return known && minX > maxX;
+    }
+
+    public synchronized void update(ShardStatus status) {
+      if (!known) {
+        clear();
+      }
+      if (status.getSize() > 0) {
+        extend(status.getMinX(), status.getMinY(), status.getMaxX(), status.getMaxY());
+      }
+    }
+
+    private void extend(double minX, double minY, double maxX, double maxY) {
+      this.minX = Math.min(this.minX, minX);
+      this.minY = Math.min(this.minY, minY);
+      this.maxX = Math.max(this.maxX, maxX);
+      this.maxY = Math.max(this.maxY, maxY);
+    }
+  }
+
+  private static final ALogger LOG = Logger.of(PointsCoordinator.class);
+
+  private static final int MORTON_BITS = 16;
+
+  @Autowired
+  private AvroComponent avroComponent;
+
+  @Value("${avro-d2-example.shard-max-x:1.0}")
+  private double maxX;
+
+  @Value("${avro-d2-example.shard-max-y:1.0}")
+  private double maxY;
+
+  @Value("${avro-d2-example.shard-min-x:0.0}")
+  private double minX;
+
+  @Value("${avro-d2-example.shard-min-y:0.0}")
+  private double minY;
+
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  private ShardRegistry shardRegistry;
+
+  private volatile List<Shard> shards = Collections.emptyList();
+
+  private final Map<String, Shard> shardsByUrl = new ConcurrentHashMap<>();
+
+  @Value("${avro-d2-example.shard-status-interval-ms:1000}")
+  private long statusIntervalMillis;
+
+  @Override
+  public CompletionStage<Void> addPoint(Point point) {
+    return addPoints(Collections.singletonList(point));
+  }
+
+  @Override
+  public CompletionStage<Void> addPoints(List<Point> points) {
+    List<Shard> shards = this.shards;
+    if (shards.isEmpty()) {
+      return noShards();
+    }
+
+    List<List<controllers.protocols.shards.Point>> partitions = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (Point point : points) {
+      long key = getMortonKey(point.getX(), point.getY());
+      partitions.get((int) ((key * shards.size()) >>> (MORTON_BITS * 2))).add(toShardPoint(point));
+    }
+
+    // The boxes are extended before the points are sent, so that no query misses a point that has been added.
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      if (!partitions.get(i).isEmpty()) {
+        shards.get(i).add(partitions.get(i));
+        futures.add(shards.get(i).client.addPoints(partitions.get(i)).toCompletableFuture());
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  public void afterStart() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    scheduler.scheduleWithFixedDelay(this::readStatuses, statusIntervalMillis, statusIntervalMillis,
+        TimeUnit.MILLISECONDS);
+    try {
+      shardRegistry.watch(this::setShards);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to watch point shards", e);
+    }
+  }
+
+  @Override
+  public void afterStop() {
+  }
+
+  @Override
+  public void beforeStart() {
+  }
+
+  @Override
+  public void beforeStop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Override
+  public CompletionStage<Void> clear() {
+    List<Shard> shards = this.shards;
+    if (shards.isEmpty()) {
+      return noShards();
+    }
+    return CompletableFuture.allOf(shards.stream()
+        .map(shard -> {
+          shard.clear();
+          return shard.client.clear().toCompletableFuture();
+        })
+        .toArray(CompletableFuture<?>[]::new));
+  }
+
+  @Override
+  public CompletionStage<List<Point>> getNearestPoints(Point from, int k) {
+    List<Shard> shards = this.shards;
+    if (shards.isEmpty()) {
+      return noShards();
+    }
+    if (k <= 0) {
+      return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+
+    controllers.protocols.shards.Point origin = toShardPoint(from);
+    List<Integer> candidates = new ArrayList<>(shards.size());
+    double[] boxDistances = new double[shards.size()];
+    for (int i = 0; i < shards.size(); i++) {
+      if (!shards.get(i).isEmpty()) {
+        candidates.add(i);
+        boxDistances[i] = shards.get(i).getBoxDistanceSquare(origin);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return kTooLarge(k);
+    }
+    candidates.sort(Comparator.comparingDouble(i -> boxDistances[i]));
+
+    // If the nearest shard has fewer than k points, all the other shards are queried, so the merged points are all the
+    // points there are.
+    int nearestShard = candidates.get(0);
+    return shards.get(nearestShard).client.getNearestPoints(origin, k, Double.POSITIVE_INFINITY)
+        .thenCompose(nearestPoints -> {
+          double bound = nearestPoints.size() < k ? Double.POSITIVE_INFINITY
+              : getDistanceSquare(nearestPoints.get(k - 1), origin);
+          List<CompletableFuture<List<controllers.protocols.shards.Point>>> futures = new ArrayList<>();
+          futures.add(CompletableFuture.completedFuture(nearestPoints));
+          for (int i : candidates.subList(1, candidates.size())) {
+            if (boxDistances[i] <= bound) {
+              futures.add(shards.get(i).client.getNearestPoints(origin, k, bound).toCompletableFuture());
+            }
+          }
+          return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenCompose(nothing -> {
+            List<Point> points = merge(futures.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList()), origin, k);
+            return points.size() < k ? kTooLarge(k) : CompletableFuture.completedFuture(points);
+          });
+        });
+  }
+
+  /**
+   * Returns the number of shards that points are currently partitioned among.
+   */
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+  }
+
+  private static double getDistanceSquare(controllers.protocols.shards.Point point,
+      controllers.protocols.shards.Point origin) {
+    double xDistance = point.getX() - origin.getX();
+    double yDistance = point.getY() - origin.getY();
+    return xDistance * xDistance + yDistance * yDistance;
+  }
+
+  private long getMortonKey(double x, double y) {
+    return interleave(scale(x, minX, maxX)) | interleave(scale(y, minY, maxY)) << 1;
+  }
+
+  private long interleave(int value) {
+    long bits = value & 0xFFFFL;
+    bits = (bits | bits << 8) & 0x00FF00FFL;
+    bits = (bits | bits << 4) & 0x0F0F0F0FL;
+    bits = (bits | bits << 2) & 0x33333333L;
+    bits = (bits | bits << 1) & 0x55555555L;
+    return bits;
+  }
+
+  private static <T> CompletionStage<T> kTooLarge(int k) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(KTooLargeError.newBuilder().setValue("k is too large").setK(k).build());
+    return future;
+  }
+
+  private static List<Point> merge(List<List<controllers.protocols.shards.Point>> lists,
+      controllers.protocols.shards.Point origin, int k) {
+    int[] positions = new int[lists.size()];
+    List<Point> points = new ArrayList<>(k);
+    while (points.size() < k) {
+      int nearest = -1;
+      double nearestDistance = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < lists.size(); i++) {
+        if (positions[i] < lists.get(i).size()) {
+          double distance = getDistanceSquare(lists.get(i).get(positions[i]), origin);
+          if (nearest < 0 || distance < nearestDistance) {
+            nearest = i;
+            nearestDistance = distance;
+          }
+        }
+      }
+      if (nearest < 0) {
+        break;
+      }
+      controllers.protocols.shards.Point point = lists.get(nearest).get(positions[nearest]++);
+      points.add(Point.newBuilder().setX(point.getX()).setY(point.getY()).build());
+    }
+    return points;
+  }
+
+  private static <T> CompletionStage<T> noShards() {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(new IllegalStateException("No point shards are registered"));
+    return future;
+  }
+
+  private void readStatus(Shard shard) {
+    shard.client.getStatus().whenComplete((status, throwable) -> {
+      if (throwable == null) {
+        shard.update(status);
+      } else {
+        LOG.warn("Unable to read the status of a point shard", throwable);
+      }
+    });
+  }
+
+  private void readStatuses() {
+    shards.forEach(this::readStatus);
+  }
+
+  private int scale(double value, double min, double max) {
+    double scaled = (value - min) / (max - min) * (1 << MORTON_BITS);
+    return (int) Math.min(Math.max(scaled, 0), (1 << MORTON_BITS) - 1);
+  }
+
+  private void setShards(List<String> urls) {
+    shardsByUrl.keySet().retainAll(urls);
+    List<Shard> shards = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      shards.add(shardsByUrl.computeIfAbsent(url, key -> {
+        try {
+          Shard shard = new Shard(avroComponent.client(PointShardClient.class, new URL(key)));
+          readStatus(shard);
+          return shard;
+        } catch (Exception e) {
+          throw new RuntimeException("Unable to create client for point shard at " + key, e);
+        }
+      }));
+    }
+    LOG.info("Partitioning points among " + shards.size() + " shard(s)");
+    this.shards = Collections.unmodifiableList(shards);
+  }
+
+  private static controllers.protocols.shards.Point toShardPoint(Point point) {
+    return controllers.protocols.shards.Point.newBuilder().setX(point.getX()).setY(point.getY()).build();
+  }
+}
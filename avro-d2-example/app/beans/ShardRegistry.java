@@ -0,0 +1,190 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import controllers.protocols.shards.PointShard;
+import me.tfeng.toolbox.spring.ExtendedStartable;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Registers the URLs of point shards in ZooKeeper, in the same servers node that the Avro D2 module registers the
+ * PointShard protocol of this application, and notifies listeners of the current shards whenever they change.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+public class ShardRegistry implements ExtendedStartable {
+
+  private static final long CONNECT_TIMEOUT = 10;
+
+  private static final ALogger LOG = Logger.of(ShardRegistry.class);
+
+  private static final String SERVERS_PATH =
+      "/protocols/" + PointShard.PROTOCOL.getNamespace() + "." + PointShard.PROTOCOL.getName() + "/servers";
+
+  @Value("${play-mods.avro-d2.session-timeout:10000}")
+  private int sessionTimeout;
+
+  private ZooKeeper zk;
+
+  @Value("${play-mods.avro-d2.zk-connect-string}")
+  private String zkConnectString;
+
+  @Override
+  public void afterStart() {
+  }
+
+  @Override
+  public void afterStop() {
+  }
+
+  @Override
+  public void beforeStart() {
+  }
+
+  @Override
+  public synchronized void beforeStop() {
+    if (zk != null) {
+      try {
+        zk.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      zk = null;
+    }
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+  }
+
+  /**
+   * Registers a shard with the given URL for as long as this application is running, or until it is unregistered with
+   * the returned path.
+   */
+  public String register(String url) throws KeeperException, InterruptedException {
+    ZooKeeper zk = getZooKeeper();
+    createParents(zk);
+    return zk.create(SERVERS_PATH + "/", url.getBytes(StandardCharsets.UTF_8), Ids.OPEN_ACL_UNSAFE,
+        CreateMode.EPHEMERAL_SEQUENTIAL);
+  }
+
+  /**
+   * Unregisters the shard registered at the given path, if it is still registered.
+   */
+  public void unregister(String path) throws KeeperException, InterruptedException {
+    try {
+      getZooKeeper().delete(path, -1);
+    } catch (KeeperException.NoNodeException e) {
+      // Already removed, for example with an expired session.
+    }
+  }
+
+  /**
+   * Calls the listener with the URLs of the registered shards, in the order of registration, and calls it again every
+   * time a shard is registered or unregistered.
+   */
+  public void watch(Consumer<List<String>> listener) throws KeeperException, InterruptedException {
+    createParents(getZooKeeper());
+    readShards(listener);
+  }
+
+  private void createParents(ZooKeeper zk) throws KeeperException, InterruptedException {
+    StringBuilder path = new StringBuilder();
+    for (String node : SERVERS_PATH.substring(1).split("/")) {
+      path.append('/').append(node);
+      try {
+        zk.create(path.toString(), new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      } catch (KeeperException.NodeExistsException e) {
+        // Created by another node or by the Avro D2 module.
+      }
+    }
+  }
+
+  private synchronized ZooKeeper getZooKeeper() throws InterruptedException {
+    if (zk == null) {
+      CountDownLatch connected = new CountDownLatch(1);
+      try {
+        zk = new ZooKeeper(zkConnectString, sessionTimeout, event -> {
+          if (event.getState() == KeeperState.SyncConnected) {
+            connected.countDown();
+          }
+        });
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to connect to ZooKeeper at " + zkConnectString, e);
+      }
+      if (!connected.await(CONNECT_TIMEOUT, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out connecting to ZooKeeper at " + zkConnectString);
+      }
+    }
+    return zk;
+  }
+
+  private void readShards(Consumer<List<String>> listener) throws KeeperException, InterruptedException {
+    ZooKeeper zk = getZooKeeper();
+    Watcher watcher = new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        if (event.getType() != Event.EventType.None) {
+          try {
+            readShards(listener);
+          } catch (Exception e) {
+            LOG.warn("Unable to read shards from ZooKeeper", e);
+          }
+        }
+      }
+    };
+    List<String> children = new ArrayList<>(zk.getChildren(SERVERS_PATH, watcher));
+    Collections.sort(children);
+    List<String> urls = new ArrayList<>(children.size());
+    for (String child : children) {
+      try {
+        urls.add(new String(zk.getData(SERVERS_PATH + "/" + child, false, null), StandardCharsets.UTF_8));
+      } catch (KeeperException.NoNodeException e) {
+        // Unregistered after the children were listed; the watcher will be notified.
+      }
+    }
+    listener.accept(urls);
+  }
+}
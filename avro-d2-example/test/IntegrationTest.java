@@ -20,18 +20,28 @@
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static play.test.Helpers.running;
 import static play.test.Helpers.testServer;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
 
 import org.apache.avro.ipc.HttpTransceiver;
 import org.apache.avro.ipc.specific.SpecificRequestor;
 import org.junit.Before;
 import org.junit.Test;
 
+import beans.PointsCoordinator;
 import controllers.protocols.Example;
+import controllers.protocols.KTooLargeError;
+import controllers.protocols.Point;
+import controllers.protocols.Points;
 import me.tfeng.playmods.spring.ApplicationLoader;
+import me.tfeng.toolbox.spring.ApplicationManager;
 import play.Application;
 import play.ApplicationLoader.Context;
 import play.Environment;
@@ -43,6 +53,8 @@ import play.libs.ws.ahc.StandaloneAhcWSClient;
  */
 public class IntegrationTest {
 
+  private static final int LOCAL_SHARDS = 3;
+
   private static final int PORT = 9000;
 
   private Application application;
@@ -81,4 +93,53 @@ public class IntegrationTest {
       }
     });
   }
+
+  @Test
+  public void testShardedPoints() {
+    running(testServer(PORT, application), () -> {
+      try {
+        PointsCoordinator coordinator =
+            application.injector().instanceOf(ApplicationManager.class).getBean(PointsCoordinator.class);
+        for (int i = 0; i < 100 && coordinator.getShardCount() < LOCAL_SHARDS + 1; i++) {
+          Thread.sleep(100);
+        }
+        assertThat(coordinator.getShardCount(), is(LOCAL_SHARDS + 1));
+
+        HttpTransceiver transceiver = new HttpTransceiver(new URL("http://localhost:9000/points"));
+        Points points = SpecificRequestor.getClient(Points.class, transceiver);
+        Random random = new Random(0);
+        List<Point> added = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+          added.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+        }
+        points.addPoints(added);
+
+        for (int i = 0; i < 20; i++) {
+          Point from = Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build();
+          int k = 1 + random.nextInt(50);
+          List<Point> expected = new ArrayList<>(added);
+          expected.sort(Comparator.comparingDouble(point -> (point.getX() - from.getX()) * (point.getX() - from.getX())
+              + (point.getY() - from.getY()) * (point.getY() - from.getY())));
+          assertThat(points.getNearestPoints(from, k), is(expected.subList(0, k)));
+        }
+
+        try {
+          points.getNearestPoints(added.get(0), added.size() + 1);
+          fail("KTooLargeError is expected");
+        } catch (KTooLargeError e) {
+          assertThat(e.getK(), is(added.size() + 1));
+        }
+
+        points.clear();
+        try {
+          points.getNearestPoints(added.get(0), 1);
+          fail("KTooLargeError is expected");
+        } catch (KTooLargeError e) {
+          assertThat(e.getK(), is(1));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
 }
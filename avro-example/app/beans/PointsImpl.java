@@ -20,18 +20,15 @@
 
 package beans;
 
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Lists;
-
 import controllers.protocols.KTooLargeError;
 import controllers.protocols.Point;
 import controllers.protocols.Points;
+import indexes.PointIndex;
 
 /**
  * @author Thomas Feng (huining.feng@gmail.com)
@@ -39,56 +36,95 @@ import controllers.protocols.Points;
 @Component("points")
 public class PointsImpl implements Points {
 
-  private static class DescendingPointComparator implements Comparator<Point> {
-
-    private final Point from;
-
-    public DescendingPointComparator(Point from) {
-      this.from = from;
-    }
-
-    @Override
-    public int compare(Point point1, Point point2) {
-      return - Double.compare(distanceSquare(from, point1), distanceSquare(from, point2));
-    }
+  @Autowired
+  private PointIndex index;
 
-    private double distanceSquare(Point point1, Point point2) {
-      double xDistance = point1.getX() - point2.getX();
-      double yDistance = point1.getY() - point2.getY();
-      return xDistance * xDistance + yDistance * yDistance;
-    }
+  @Override
+  public Void addPoint(Point point) {
+    index.add(point);
+    return null;
   }
 
-  private final List<Point> points = new ArrayList<>();
-
   @Override
-  public Void addPoint(Point point) {
-    points.add(point);
+  public Void addPoints(List<Point> points) {
+    index.addAll(points);
     return null;
   }
 
   @Override
   public void clear() {
-    points.clear();
+    index.clear();
+  }
+
+  @Override
+  public List<Point> getApproximateNearestPoints(Point from, int k, int maxCandidates) throws KTooLargeError {
+    if (index.size() < k) {
+      throw newKTooLargeError(k);
+    }
+
+    List<Point> points = index.getApproximateNearestPoints(from, k, maxCandidates);
+    if (points.size() < k) {
+      throw newKTooLargeError(k);
+    }
+    return points;
   }
 
   @Override
   public List<Point> getNearestPoints(Point from, int k) throws KTooLargeError {
+    if (index.size() < k) {
+      throw newKTooLargeError(k);
+    }
+
+    // Points may be cleared concurrently after the check above.
+    List<Point> points = index.getNearestPoints(from, k);
     if (points.size() < k) {
-      throw KTooLargeError.newBuilder().setValue("k is too large").setK(k).build();
+      throw newKTooLargeError(k);
     }
+    return points;
+  }
 
-    PriorityQueue<Point> queue = new PriorityQueue<>(new DescendingPointComparator(from));
-    for (Point point : points) {
-      queue.add(point);
-      if (queue.size() > k) {
-        queue.poll();
-      }
+  /**
+   * Returns the k nearest points like {@link #getNearestPoints(Point, int)}, creating each point only when it is read
+   * from the list.
+   */
+  public List<Point> getNearestPointsLazily(Point from, int k) throws KTooLargeError {
+    if (index.size() < k) {
+      throw newKTooLargeError(k);
+    }
+
+    List<Point> points = index.getNearestPointsLazily(from, k);
+    if (points.size() < k) {
+      throw newKTooLargeError(k);
+    }
+    return points;
+  }
+
+  @Override
+  public List<List<Point>> getNearestPointsBatch(List<Point> origins, int k) throws KTooLargeError {
+    if (index.size() < k) {
+      throw newKTooLargeError(k);
     }
-    List<Point> points = new ArrayList<>(queue.size());
-    while (!queue.isEmpty()) {
-      points.add(queue.poll());
+
+    List<List<Point>> pointsList = index.getNearestPointsBatch(origins, k);
+    for (List<Point> points : pointsList) {
+      if (points.size() < k) {
+        throw newKTooLargeError(k);
+      }
     }
-    return Lists.reverse(points);
+    return pointsList;
+  }
+
+  @Override
+  public List<Point> getPointsInBox(Point min, Point max) {
+    return index.getPointsInBox(min, max);
+  }
+
+  @Override
+  public List<Point> getPointsWithinRadius(Point center, double radius) {
+    return index.getPointsWithinRadius(center, radius);
+  }
+
+  private KTooLargeError newKTooLargeError(int k) {
+    return KTooLargeError.newBuilder().setValue("k is too large").setK(k).build();
   }
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import indexes.PointIndex;
+import me.tfeng.toolbox.spring.Startable;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Loads the points from the snapshot file on start, and saves them to it on stop. Nothing is loaded or saved when no
+ * snapshot file is configured. A snapshot file may not be configured together with a log directory, from which the
+ * points are recovered instead.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+public class SnapshotStartable implements InitializingBean, Startable {
+
+  private static final ALogger LOG = Logger.of(SnapshotStartable.class);
+
+  @Autowired
+  private PointIndex index;
+
+  @Value("${avro-example.log-directory}")
+  private String logDirectory;
+
+  @Value("${avro-example.snapshot-file}")
+  private String snapshotFile;
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (!snapshotFile.isEmpty() && !logDirectory.isEmpty()) {
+      throw new IllegalStateException("avro-example.snapshot-file and avro-example.log-directory cannot both be set; "
+          + "points are recovered from the snapshots and logs in avro-example.log-directory");
+    }
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+    if (!snapshotFile.isEmpty()) {
+      Path file = Paths.get(snapshotFile);
+      if (Files.exists(file)) {
+        long startTime = System.currentTimeMillis();
+        index.loadSnapshot(file);
+        LOG.info("Loaded " + index.size() + " points from " + file + " in " + (System.currentTimeMillis() - startTime)
+            + " ms");
+      }
+    }
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+    if (!snapshotFile.isEmpty()) {
+      Path file = Paths.get(snapshotFile);
+      index.saveSnapshot(file);
+      LOG.info("Saved " + index.size() + " points to " + file);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import beans.PointsImpl;
+import controllers.protocols.KTooLargeError;
+import controllers.protocols.Point;
+import controllers.protocols.Points;
+import play.mvc.BodyParser;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Streams the result of {@link Points#getNearestPoints(Point, int)} in a chunked response, for k too large to hold all
+ * the points in memory at once.
+ *
+ * <p>The request is the Avro binary encoding of the parameters of getNearestPoints. The response is the Avro binary
+ * encoding of the array of points, written in blocks of at most {@value #BLOCK_SIZE} points, so that a client can
+ * decode the points in the first block before the others arrive. The server holds only the indexes of the nearest
+ * points. The blocks are the elements of a {@link Source}, so no thread waits for the client: the points of a block are
+ * created and encoded only when the client has read the previous ones. If k is too large, the response has status 400
+ * and contains the Avro binary encoding of {@link KTooLargeError}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+public class PointsStreamController extends Controller {
+
+  private static final int BLOCK_SIZE = 256;
+
+  private static final String CONTENT_TYPE = "avro/binary";
+
+  private static final Schema REQUEST_SCHEMA = Points.PROTOCOL.getMessages().get("getNearestPoints").getRequest();
+
+  @Autowired
+  private PointsImpl points;
+
+  @BodyParser.Of(BodyParser.Raw.class)
+  public Result getNearestPoints() throws IOException {
+    ByteString body = request().body().asRaw().asBytes();
+    GenericRecord request = new SpecificDatumReader<GenericRecord>(REQUEST_SCHEMA)
+        .read(null, DecoderFactory.get().binaryDecoder(body.toArray(), null));
+    Point from = (Point) request.get("from");
+    int k = (Integer) request.get("k");
+
+    List<Point> nearestPoints;
+    try {
+      nearestPoints = points.getNearestPointsLazily(from, k);
+    } catch (KTooLargeError e) {
+      return badRequest(encodeError(e)).as(CONTENT_TYPE);
+    }
+
+    // The last element is the end of the array.
+    int blocks = (nearestPoints.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    Iterable<ByteString> elements = () -> IntStream.rangeClosed(0, blocks)
+        .mapToObj(block -> encodeBlock(nearestPoints, block * BLOCK_SIZE))
+        .iterator();
+    return ok().chunked(Source.from(elements)).as(CONTENT_TYPE);
+  }
+
+  private ByteString encodeBlock(List<Point> nearestPoints, int from) {
+    try {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+      if (from == 0) {
+        encoder.writeArrayStart();
+      }
+      if (from < nearestPoints.size()) {
+        int to = Math.min(from + BLOCK_SIZE, nearestPoints.size());
+        SpecificDatumWriter<Point> writer = new SpecificDatumWriter<>(Point.class);
+        encoder.setItemCount(to - from);
+        for (int i = from; i < to; i++) {
+          encoder.startItem();
+          writer.write(nearestPoints.get(i), encoder);
+        }
+      } else {
+        encoder.writeArrayEnd();
+      }
+      encoder.flush();
+      return ByteString.fromArray(stream.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private byte[] encodeError(KTooLargeError error) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+    new SpecificDatumWriter<>(KTooLargeError.class).write(error, encoder);
+    encoder.flush();
+    return stream.toByteArray();
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a batch of queries, identified by their positions in the batch, into ranges that run in parallel.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class BatchTask extends RecursiveAction {
+
+  interface Range {
+
+    void run(int from, int to);
+  }
+
+  private final int from;
+
+  private final int grain;
+
+  private final Range range;
+
+  private final int to;
+
+  public BatchTask(Range range, int from, int to, int grain) {
+    this.range = range;
+    this.from = from;
+    this.to = to;
+    this.grain = grain;
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from <= grain) {
+      range.run(from, to);
+    } else {
+      int middle = (from + to) >>> 1;
+      invokeAll(new BatchTask(range, from, middle, grain), new BatchTask(range, middle, to, grain));
+    }
+  }
+}
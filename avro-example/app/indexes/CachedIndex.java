@@ -0,0 +1,280 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import controllers.protocols.Point;
+
+/**
+ * An index that caches the results of {@link #getNearestPoints(Point, int)} from another index, in least recently used
+ * order. Other queries go directly to the other index.
+ *
+ * <p>Results are cached by origin, each with the k it was computed for. A query for fewer points from the same origin
+ * is answered with the first points of the cached result, and a query for more points replaces it. The cache is bounded
+ * by the total number of points in its results, and the least recently used results are evicted beyond it.
+ *
+ * <p>Every addition, clear or snapshot load goes through this index and increments its version. A cached result is only
+ * returned while the version it was computed at is current, so no result computed before a write is returned after it.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@ManagedResource
+public class CachedIndex implements PointIndex {
+
+  private static class Origin {
+
+    private final double x;
+
+    private final double y;
+
+    public Origin(Point point) {
+      x = point.getX();
+      y = point.getY();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Origin)) {
+        return false;
+      }
+      Origin origin = (Origin) object;
+      return Double.compare(x, origin.x) == 0 && Double.compare(y, origin.y) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Double.hashCode(x) * 31 + Double.hashCode(y);
+    }
+  }
+
+  private static class Result {
+
+    private final int k;
+
+    private final List<Point> points;
+
+    private final long version;
+
+    public Result(int k, List<Point> points, long version) {
+      this.k = k;
+      this.points = points;
+      this.version = version;
+    }
+
+    private boolean answers(int k) {
+      // Fewer than k points means the index had no more points to return.
+      return k <= this.k || points.size() < this.k;
+    }
+  }
+
+  private final int capacity;
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final PointIndex index;
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final LinkedHashMap<Origin, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+
+  private int size;
+
+  private volatile long version;
+
+  /**
+   * Creates an index that caches at most capacity points in total. A capacity of 0 disables the cache.
+   */
+  public CachedIndex(PointIndex index, int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+    }
+    this.index = index;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void add(Point point) {
+    try {
+      index.add(point);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override
+  public void addAll(List<Point> points) {
+    try {
+      index.addAll(points);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override
+  public void clear() {
+    try {
+      index.clear();
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override
+  public List<Point> getApproximateNearestPoints(Point from, int k, int maxCandidates) {
+    return index.getApproximateNearestPoints(from, k, maxCandidates);
+  }
+
+  @ManagedAttribute(description = "Number of points in the cached results")
+  public synchronized int getCachedPoints() {
+    return size;
+  }
+
+  @ManagedAttribute(description = "Number of results evicted to stay within the capacity")
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute(description = "Number of queries answered from the cache")
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute(description = "Number of queries passed to the underlying index")
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public List<Point> getNearestPoints(Point from, int k) {
+    if (capacity == 0 || k <= 0) {
+      return index.getNearestPoints(from, k);
+    }
+
+    Origin origin = new Origin(from);
+    long version = this.version;
+    List<Point> cachedPoints = get(origin, k, version);
+    if (cachedPoints != null) {
+      return cachedPoints;
+    }
+
+    List<Point> points = index.getNearestPoints(from, k);
+    if (points.size() <= capacity) {
+      put(origin, new Result(k, Collections.unmodifiableList(points), version));
+    }
+    return points;
+  }
+
+  @Override
+  public List<List<Point>> getNearestPointsBatch(List<Point> origins, int k) {
+    return index.getNearestPointsBatch(origins, k);
+  }
+
+  /**
+   * Returns a cached result if there is one, without caching the points returned from the other index otherwise.
+   */
+  @Override
+  public List<Point> getNearestPointsLazily(Point from, int k) {
+    if (capacity == 0 || k <= 0) {
+      return index.getNearestPointsLazily(from, k);
+    }
+
+    List<Point> cachedPoints = get(new Origin(from), k, version);
+    return cachedPoints == null ? index.getNearestPointsLazily(from, k) : cachedPoints;
+  }
+
+  @Override
+  public List<Point> getPointsInBox(Point min, Point max) {
+    return index.getPointsInBox(min, max);
+  }
+
+  @Override
+  public List<Point> getPointsWithinRadius(Point center, double radius) {
+    return index.getPointsWithinRadius(center, radius);
+  }
+
+  @Override
+  public void loadSnapshot(Path file) throws IOException {
+    try {
+      index.loadSnapshot(file);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override
+  public void saveSnapshot(Path file) throws IOException {
+    index.saveSnapshot(file);
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  private synchronized List<Point> get(Origin origin, int k, long version) {
+    Result result = results.get(origin);
+    if (result != null && result.version == version && result.answers(k)) {
+      hits.incrementAndGet();
+      return result.points.size() <= k ? result.points : result.points.subList(0, k);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  private synchronized void invalidate() {
+    version++;
+    results.clear();
+    size = 0;
+  }
+
+  private synchronized void put(Origin origin, Result result) {
+    Result previous = results.get(origin);
+    if (result.version != version || previous != null && previous.k >= result.k) {
+      return;
+    }
+
+    if (previous != null) {
+      size -= previous.points.size();
+    }
+    results.put(origin, result);
+    size += result.points.size();
+
+    Iterator<Result> iterator = results.values().iterator();
+    while (size > capacity) {
+      Result eldest = iterator.next();
+      iterator.remove();
+      size -= eldest.points.size();
+      evictions.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import storage.PointStore;
+
+/**
+ * A uniform grid of square cells, each of which keeps the coordinates of its points contiguously. Queries scan the
+ * cells in rings of increasing distance around the origin's cell, and stop when the next ring is farther away than the
+ * current k-th nearest point. An approximate query also stops once maxCandidates points have been compared, so its
+ * cost depends little on how many points there are.
+ *
+ * <p>A query for the points in a box or a circle reads only the cells that overlap the box bounding it.
+ *
+ * <p>The cell size should be in the order of the distance that covers a few nearest points. A ring or a box that spans
+ * more cells than are occupied is not enumerated; the occupied cells are checked one by one instead. The cells are
+ * found in an open-addressing hash table keyed by their packed column and row, so that looking one up does not box the
+ * key.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class GridIndex extends IncrementalIndex {
+
+  private static class Cell {
+
+    private int[] indexes = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    private double[] xs = new double[INITIAL_CAPACITY];
+
+    private double[] ys = new double[INITIAL_CAPACITY];
+
+    private void add(double x, double y, int index) {
+      if (size == xs.length) {
+        indexes = Arrays.copyOf(indexes, size * 2);
+        xs = Arrays.copyOf(xs, size * 2);
+        ys = Arrays.copyOf(ys, size * 2);
+      }
+      indexes[size] = index;
+      xs[size] = x;
+      ys[size] = y;
+      size++;
+    }
+
+    private void collect(double minX, double minY, double maxX, double maxY, IntConsumer consumer) {
+      for (int i = 0; i < size; i++) {
+        if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+          consumer.accept(indexes[i]);
+        }
+      }
+    }
+
+    private int scan(double x, double y, Neighbors neighbors) {
+      for (int i = 0; i < size; i++) {
+        double xDistance = x - xs[i];
+        double yDistance = y - ys[i];
+        neighbors.offer(xDistance * xDistance + yDistance * yDistance, indexes[i]);
+      }
+      return size;
+    }
+  }
+
+  /**
+   * A hash table with linear probing from the packed column and row of each occupied cell to the cell. It is at most
+   * half full.
+   */
+  private static class CellMap {
+
+    private long[] keys = new long[INITIAL_CELL_MAP_CAPACITY];
+
+    private int size;
+
+    private Cell[] values = new Cell[INITIAL_CELL_MAP_CAPACITY];
+
+    private Cell get(long key) {
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+      }
+      return null;
+    }
+
+    private Cell getOrCreate(long key) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      for (; values[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+      }
+      Cell cell = new Cell();
+      keys[slot] = key;
+      values[slot] = cell;
+      if (++size * 2 > keys.length) {
+        resize();
+      }
+      return cell;
+    }
+
+    private static int hash(long key) {
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    private void resize() {
+      long[] oldKeys = keys;
+      Cell[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new Cell[oldValues.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != null) {
+          int slot = hash(oldKeys[i]) & mask;
+          while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private static final int INITIAL_CELL_MAP_CAPACITY = 16;
+
+  private final double cellSize;
+
+  private CellMap cells = new CellMap();
+
+  private int maxColumn = Integer.MIN_VALUE;
+
+  private int maxRow = Integer.MIN_VALUE;
+
+  private int minColumn = Integer.MAX_VALUE;
+
+  private int minRow = Integer.MAX_VALUE;
+
+  public GridIndex(PointStore store, double cellSize) {
+    super(store);
+    if (!(cellSize > 0)) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    this.cellSize = cellSize;
+  }
+
+  @Override
+  void index(PointStore points, int from, int to) {
+    for (int i = from; i < to; i++) {
+      double x = points.getX(i);
+      double y = points.getY(i);
+      int column = cell(x);
+      int row = cell(y);
+      cells.getOrCreate(key(column, row)).add(x, y, i);
+      minColumn = Math.min(minColumn, column);
+      maxColumn = Math.max(maxColumn, column);
+      minRow = Math.min(minRow, row);
+      maxRow = Math.max(maxRow, row);
+    }
+  }
+
+  @Override
+  void reset() {
+    cells = new CellMap();
+    maxColumn = Integer.MIN_VALUE;
+    maxRow = Integer.MIN_VALUE;
+    minColumn = Integer.MAX_VALUE;
+    minRow = Integer.MAX_VALUE;
+  }
+
+  @Override
+  void searchBox(PointStore points, double minX, double minY, double maxX, double maxY, IntConsumer consumer) {
+    int fromColumn = Math.max(cell(minX), minColumn);
+    int toColumn = Math.min(cell(maxX), maxColumn);
+    int fromRow = Math.max(cell(minY), minRow);
+    int toRow = Math.min(cell(maxY), maxRow);
+    if (fromColumn > toColumn || fromRow > toRow) {
+      return;
+    }
+
+    if (((long) toColumn - fromColumn + 1) * ((long) toRow - fromRow + 1) > cells.size) {
+      for (int i = 0; i < cells.keys.length; i++) {
+        if (cells.values[i] == null) {
+          continue;
+        }
+        int column = (int) (cells.keys[i] >> 32);
+        int row = (int) cells.keys[i];
+        if (column >= fromColumn && column <= toColumn && row >= fromRow && row <= toRow) {
+          cells.values[i].collect(minX, minY, maxX, maxY, consumer);
+        }
+      }
+    } else {
+      for (int column = fromColumn; column <= toColumn; column++) {
+        for (int row = fromRow; row <= toRow; row++) {
+          Cell cell = cells.get(key(column, row));
+          if (cell != null) {
+            cell.collect(minX, minY, maxX, maxY, consumer);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  void searchIndexed(PointStore points, double x, double y, int maxCandidates, Neighbors neighbors) {
+    if (cells.size == 0) {
+      return;
+    }
+
+    int column = clamp(cell(x), minColumn, maxColumn);
+    int row = clamp(cell(y), minRow, maxRow);
+    int maxRing = Math.max(Math.max(column - minColumn, maxColumn - column), Math.max(row - minRow, maxRow - row));
+    int candidates = 0;
+    for (int ring = 0; ring <= maxRing; ring++) {
+      if (neighbors.isFull() && ringDistance(x, y, column, row, ring) > neighbors.worstDistance()) {
+        return;
+      }
+      if (ringCells(column, row, ring) > cells.size) {
+        scanFrom(x, y, column, row, ring, maxCandidates - candidates, neighbors);
+        return;
+      }
+
+      for (int c = Math.max(column - ring, minColumn); c <= Math.min(column + ring, maxColumn); c++) {
+        if (c == column - ring || c == column + ring) {
+          for (int r = Math.max(row - ring, minRow); r <= Math.min(row + ring, maxRow); r++) {
+            candidates += scan(x, y, c, r, neighbors);
+          }
+        } else {
+          candidates += scan(x, y, c, row - ring, neighbors);
+          candidates += scan(x, y, c, row + ring, neighbors);
+        }
+        if (candidates >= maxCandidates && neighbors.isFull()) {
+          return;
+        }
+      }
+    }
+  }
+
+  private int cell(double coordinate) {
+    return (int) Math.max(Math.min(Math.floor(coordinate / cellSize), Integer.MAX_VALUE - 1), Integer.MIN_VALUE + 1);
+  }
+
+  private double cellDistance(double x, double y, int column, int row) {
+    double xDistance = Math.max(Math.max(column * cellSize - x, x - (column + 1) * cellSize), 0.0);
+    double yDistance = Math.max(Math.max(row * cellSize - y, y - (row + 1) * cellSize), 0.0);
+    return xDistance * xDistance + yDistance * yDistance;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private static long key(int column, int row) {
+    return ((long) column << 32) | (row & 0xffffffffL);
+  }
+
+  private long ringCells(int column, int row, int ring) {
+    long width = (long) Math.min(column + ring, maxColumn) - Math.max(column - ring, minColumn) + 1;
+    long height = (long) Math.min(row + ring, maxRow) - Math.max(row - ring, minRow) + 1;
+    return Math.min(width * 2 + height * 2, width * height);
+  }
+
+  /**
+   * Returns the squared distance from (x, y) to the nearest point in the occupied area but outside the square of cells
+   * that are less than ring cells away from (column, row).
+   */
+  private double ringDistance(double x, double y, int column, int row, int ring) {
+    if (ring == 0) {
+      return 0.0;
+    }
+    double distance = Double.POSITIVE_INFINITY;
+    if (column - ring >= minColumn) {
+      distance = Math.min(distance, x - (column - ring + 1) * cellSize);
+    }
+    if (column + ring <= maxColumn) {
+      distance = Math.min(distance, (column + ring) * cellSize - x);
+    }
+    if (row - ring >= minRow) {
+      distance = Math.min(distance, y - (row - ring + 1) * cellSize);
+    }
+    if (row + ring <= maxRow) {
+      distance = Math.min(distance, (row + ring) * cellSize - y);
+    }
+    return distance > 0 ? distance * distance : 0.0;
+  }
+
+  private int scan(double x, double y, int column, int row, Neighbors neighbors) {
+    if (row < minRow || row > maxRow) {
+      return 0;
+    }
+    Cell cell = cells.get(key(column, row));
+    return cell == null ? 0 : cell.scan(x, y, neighbors);
+  }
+
+  private void scanFrom(double x, double y, int column, int row, int ring, int maxCandidates,
+      Neighbors neighbors) {
+    int candidates = 0;
+    for (int i = 0; i < cells.keys.length; i++) {
+      if (cells.values[i] == null) {
+        continue;
+      }
+      int c = (int) (cells.keys[i] >> 32);
+      int r = (int) cells.keys[i];
+      if (Math.max(Math.abs(c - column), Math.abs(r - row)) < ring) {
+        continue;
+      }
+      if (neighbors.isFull() && cellDistance(x, y, c, r) > neighbors.worstDistance()) {
+        continue;
+      }
+      candidates += cells.values[i].scan(x, y, neighbors);
+      if (candidates >= maxCandidates && neighbors.isFull()) {
+        return;
+      }
+    }
+  }
+}
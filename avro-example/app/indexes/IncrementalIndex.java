@@ -0,0 +1,339 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import controllers.protocols.Point;
+import storage.PointStore;
+
+/**
+ * Base class for indexes that keep a search structure over the points in a {@link PointStore}, and update it as points
+ * are appended.
+ *
+ * <p>When the store is thread-safe, so is the index. Points are appended to the store without holding any lock, and
+ * are then inserted into the structure by whichever writer gets hold of the structure's write lock. A writer that finds
+ * the lock taken leaves its points to the next one, unless too many points are waiting. Queries search the structure
+ * under its read lock, and compare the origin with the waiting points one by one. The origins of a batch of queries
+ * are searched in parallel in a fork-join pool.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public abstract class IncrementalIndex implements PointIndex {
+
+  private interface PointFilter {
+
+    boolean test(double x, double y);
+  }
+
+  private static final int MAX_UNINDEXED = 4096;
+
+  private volatile int indexed;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private final PointStore store;
+
+  protected IncrementalIndex(PointStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public void add(Point point) {
+    store.add(point);
+
+    Lock writeLock = lock.writeLock();
+    if (!writeLock.tryLock()) {
+      if (store.size() - indexed <= MAX_UNINDEXED) {
+        return;
+      }
+      writeLock.lock();
+    }
+    try {
+      catchUp();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void addAll(List<Point> points) {
+    store.addAll(points);
+
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      catchUp();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      store.clear();
+      reset();
+      indexed = 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Stops searching the structure after comparing the origin with maxCandidates of its points. Points waiting to be
+   * inserted into the structure are still all compared with the origin.
+   */
+  @Override
+  public List<Point> getApproximateNearestPoints(Point from, int k, int maxCandidates) {
+    if (k <= 0) {
+      return Collections.emptyList();
+    }
+
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      PointStore points = store.snapshot();
+      return search(points, from.getX(), from.getY(), Math.max(maxCandidates, k), Neighbors.reuse(k)).toPoints(points);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Point> getNearestPoints(Point from, int k) {
+    return getNearestPoints(from, k, false);
+  }
+
+  @Override
+  public List<List<Point>> getNearestPointsBatch(List<Point> origins, int k) {
+    Neighbors[] neighbors = new Neighbors[origins.size()];
+    PointStore points;
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      points = store.snapshot();
+      if (k > 0) {
+        int grain = Math.max(origins.size() / (pool.getParallelism() * 4), 1);
+        pool.invoke(new BatchTask((from, to) -> {
+          for (int i = from; i < to; i++) {
+            neighbors[i] =
+                search(points, origins.get(i).getX(), origins.get(i).getY(), Integer.MAX_VALUE, new Neighbors(k));
+          }
+        }, 0, origins.size(), grain));
+      }
+    } finally {
+      readLock.unlock();
+    }
+
+    List<List<Point>> result = new ArrayList<>(origins.size());
+    for (Neighbors originNeighbors : neighbors) {
+      result.add(originNeighbors == null ? Collections.emptyList() : originNeighbors.toPoints(points));
+    }
+    return result;
+  }
+
+  @Override
+  public List<Point> getNearestPointsLazily(Point from, int k) {
+    return getNearestPoints(from, k, true);
+  }
+
+  @Override
+  public List<Point> getPointsInBox(Point min, Point max) {
+    return getPointsInBox(min.getX(), min.getY(), max.getX(), max.getY(), (x, y) -> true);
+  }
+
+  @Override
+  public List<Point> getPointsWithinRadius(Point center, double radius) {
+    if (!(radius >= 0)) {
+      return Collections.emptyList();
+    }
+
+    double x = center.getX();
+    double y = center.getY();
+    return getPointsInBox(x - radius, y - radius, x + radius, y + radius,
+        (pointX, pointY) -> (x - pointX) * (x - pointX) + (y - pointY) * (y - pointY) <= radius * radius);
+  }
+
+  @Override
+  public void loadSnapshot(Path file) throws IOException {
+    SnapshotFile snapshot = SnapshotFile.read(file);
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      store.load(snapshot.xs, snapshot.ys);
+      reset();
+      indexed = 0;
+      PointStore points = store.snapshot();
+      if (snapshot.type.equals(getClass().getName())) {
+        restore(points, snapshot.indexed, snapshot.structure);
+      } else {
+        index(points, 0, snapshot.indexed);
+      }
+      indexed = snapshot.indexed;
+      catchUp();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void saveSnapshot(Path file) throws IOException {
+    PointStore points;
+    int count;
+    IntBuffer[] structure;
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      points = store.snapshot();
+      count = indexed;
+      structure = structure(count);
+    } finally {
+      readLock.unlock();
+    }
+    SnapshotFile.write(file, getClass().getName(), points, count, structure);
+  }
+
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  /**
+   * Inserts the points from index {@code from} (inclusive) to index {@code to} (exclusive) into the structure. Called
+   * with the write lock held.
+   */
+  abstract void index(PointStore points, int from, int to);
+
+  /**
+   * Removes all the points from the structure. Called with the write lock held.
+   */
+  abstract void reset();
+
+  /**
+   * Restores the structure over the first size points from a snapshot written with {@link #structure(int)}. Called with
+   * the write lock held. The default implementation builds the structure from the points.
+   */
+  void restore(PointStore points, int size, IntBuffer[] structure) {
+    index(points, 0, size);
+  }
+
+  /**
+   * Passes the index of every point in the structure that is inside the box, borders included, to the consumer. Called
+   * with the read lock held.
+   */
+  abstract void searchBox(PointStore points, double minX, double minY, double maxX, double maxY, IntConsumer consumer);
+
+  /**
+   * Offers the points in the structure that may be among the nearest ones from (x, y) to the neighbors, comparing the
+   * origin with at most maxCandidates of them. Called with the read lock held.
+   */
+  abstract void searchIndexed(PointStore points, double x, double y, int maxCandidates, Neighbors neighbors);
+
+  /**
+   * Returns copies of the arrays that make up the structure over the first size points, to be written to a snapshot.
+   * Called with the read lock held. The default implementation returns none.
+   */
+  IntBuffer[] structure(int size) {
+    return new IntBuffer[0];
+  }
+
+  private void catchUp() {
+    PointStore points = store.snapshot();
+    index(points, indexed, points.size());
+    indexed = points.size();
+  }
+
+  private List<Point> getNearestPoints(Point from, int k, boolean lazily) {
+    if (k <= 0) {
+      return Collections.emptyList();
+    }
+
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      PointStore points = store.snapshot();
+      Neighbors neighbors = search(points, from.getX(), from.getY(), Integer.MAX_VALUE, Neighbors.reuse(k));
+      return lazily ? neighbors.toLazyPoints(points) : neighbors.toPoints(points);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private List<Point> getPointsInBox(double minX, double minY, double maxX, double maxY, PointFilter filter) {
+    PointStore points;
+    int[] indexes;
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      points = store.snapshot();
+      IntStream.Builder builder = IntStream.builder();
+      searchBox(points, minX, minY, maxX, maxY, builder);
+      for (int i = indexed; i < points.size(); i++) {
+        double x = points.getX(i);
+        double y = points.getY(i);
+        if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+          builder.accept(i);
+        }
+      }
+      indexes = builder.build().sorted().toArray();
+    } finally {
+      readLock.unlock();
+    }
+
+    List<Point> result = new ArrayList<>();
+    for (int index : indexes) {
+      if (filter.test(points.getX(index), points.getY(index))) {
+        result.add(points.get(index));
+      }
+    }
+    return result;
+  }
+
+  private Neighbors search(PointStore points, double x, double y, int maxCandidates, Neighbors neighbors) {
+    searchIndexed(points, x, y, maxCandidates, neighbors);
+    for (int i = indexed; i < points.size(); i++) {
+      double xDistance = x - points.getX(i);
+      double yDistance = y - points.getY(i);
+      neighbors.offer(xDistance * xDistance + yDistance * yDistance, i);
+    }
+    return neighbors;
+  }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import storage.PointStore;
+
+/**
+ * A 2-d tree maintained incrementally as points are added. Balance is kept the scapegoat way: when an insertion lands
+ * too deep, the nearest ancestor on its path that is out of weight balance is rebuilt around medians. Queries descend
+ * toward the origin first and skip every subtree whose splitting line is farther away than the current k-th nearest
+ * point.
+ *
+ * <p>Every point is a node, identified by its index in the underlying {@link PointStore}. Points at equal distance are
+ * returned in insertion order.
+ *
+ * <p>When the waiting points outnumber those already in the tree, as after {@link #addAll(List)}, the whole tree is
+ * rebuilt around medians once, instead of inserting the points one at a time. An approximate query stops after
+ * comparing the origin with maxCandidates nodes; because the search descends toward the origin first, the points it
+ * finds are mostly the nearest ones. A query for the points in a box or a circle descends only into the subtrees on the
+ * sides of the splitting lines that the bounding box overlaps.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class KdTreeIndex extends IncrementalIndex {
+
+  /**
+   * The nodes waiting to be visited during a query, with their depths and, for a nearest-point query, the squared
+   * distances from the origin to their subtrees. Each thread reuses its own stack across queries of both kinds.
+   */
+  private static class SearchStack {
+
+    private double[] bounds = new double[INITIAL_CAPACITY];
+
+    private int[] depths = new int[INITIAL_CAPACITY];
+
+    private int[] nodes = new int[INITIAL_CAPACITY];
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > nodes.length) {
+        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        depths = Arrays.copyOf(depths, depths.length * 2);
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      }
+    }
+  }
+
+  private static final double ALPHA = 0.75;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final ThreadLocal<SearchStack> SEARCH_STACKS = ThreadLocal.withInitial(SearchStack::new);
+
+  private int[] left = new int[INITIAL_CAPACITY];
+
+  private int[] right = new int[INITIAL_CAPACITY];
+
+  private int root = -1;
+
+  private int[] sizes = new int[INITIAL_CAPACITY];
+
+  public KdTreeIndex(PointStore store) {
+    super(store);
+  }
+
+  @Override
+  void index(PointStore points, int from, int to) {
+    if (to - from > from) {
+      ensureCapacity(to);
+      int[] nodes = new int[to];
+      for (int i = 0; i < to; i++) {
+        nodes[i] = i;
+      }
+      root = build(points, nodes, 0, to, 0);
+    } else {
+      for (int node = from; node < to; node++) {
+        insert(points, node);
+      }
+    }
+  }
+
+  @Override
+  void reset() {
+    root = -1;
+  }
+
+  @Override
+  void restore(PointStore points, int size, IntBuffer[] structure) {
+    if (structure.length != 4 || structure[0].remaining() != 1 || structure[1].remaining() != size
+        || structure[2].remaining() != size || structure[3].remaining() != size) {
+      super.restore(points, size, structure);
+      return;
+    }
+    ensureCapacity(size);
+    root = structure[0].get(0);
+    structure[1].get(left, 0, size);
+    structure[2].get(right, 0, size);
+    structure[3].get(sizes, 0, size);
+  }
+
+  @Override
+  void searchBox(PointStore points, double minX, double minY, double maxX, double maxY, IntConsumer consumer) {
+    if (root < 0) {
+      return;
+    }
+
+    SearchStack stack = SEARCH_STACKS.get();
+    int[] nodes = stack.nodes;
+    int[] depths = stack.depths;
+    int top = 0;
+    nodes[top] = root;
+    depths[top] = 0;
+    top++;
+
+    while (top > 0) {
+      top--;
+      int node = nodes[top];
+      int depth = depths[top];
+      double x = points.getX(node);
+      double y = points.getY(node);
+      if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+        consumer.accept(node);
+      }
+
+      double coordinate = depth % 2 == 0 ? x : y;
+      if (top + 2 > nodes.length) {
+        stack.ensureCapacity(top + 2);
+        nodes = stack.nodes;
+        depths = stack.depths;
+      }
+      if (left[node] >= 0 && (depth % 2 == 0 ? minX : minY) <= coordinate) {
+        nodes[top] = left[node];
+        depths[top] = depth + 1;
+        top++;
+      }
+      if (right[node] >= 0 && (depth % 2 == 0 ? maxX : maxY) >= coordinate) {
+        nodes[top] = right[node];
+        depths[top] = depth + 1;
+        top++;
+      }
+    }
+  }
+
+  @Override
+  void searchIndexed(PointStore points, double x, double y, int maxCandidates, Neighbors neighbors) {
+    if (root < 0) {
+      return;
+    }
+
+    int candidates = 0;
+    SearchStack stack = SEARCH_STACKS.get();
+    int[] nodes = stack.nodes;
+    int[] depths = stack.depths;
+    double[] bounds = stack.bounds;
+    int top = 0;
+    nodes[top] = root;
+    depths[top] = 0;
+    bounds[top] = 0.0;
+    top++;
+
+    while (top > 0 && candidates < maxCandidates) {
+      top--;
+      int node = nodes[top];
+      int depth = depths[top];
+      if (neighbors.isFull() && bounds[top] > neighbors.worstDistance()) {
+        continue;
+      }
+      candidates++;
+
+      double xDistance = x - points.getX(node);
+      double yDistance = y - points.getY(node);
+      neighbors.offer(xDistance * xDistance + yDistance * yDistance, node);
+
+      double delta = depth % 2 == 0 ? xDistance : yDistance;
+      int near = delta < 0 ? left[node] : right[node];
+      int far = delta < 0 ? right[node] : left[node];
+      if (top + 2 > nodes.length) {
+        stack.ensureCapacity(top + 2);
+        nodes = stack.nodes;
+        depths = stack.depths;
+        bounds = stack.bounds;
+      }
+      // The far side is pushed first, so that it is popped after the near side has tightened the bound.
+      if (far >= 0) {
+        nodes[top] = far;
+        depths[top] = depth + 1;
+        bounds[top] = delta * delta;
+        top++;
+      }
+      if (near >= 0) {
+        nodes[top] = near;
+        depths[top] = depth + 1;
+        bounds[top] = 0.0;
+        top++;
+      }
+    }
+  }
+
+  @Override
+  IntBuffer[] structure(int size) {
+    return new IntBuffer[] {
+        IntBuffer.wrap(new int[] { root }),
+        IntBuffer.wrap(Arrays.copyOf(left, size)),
+        IntBuffer.wrap(Arrays.copyOf(right, size)),
+        IntBuffer.wrap(Arrays.copyOf(sizes, size)) };
+  }
+
+  private int build(PointStore points, int[] nodes, int from, int to, int depth) {
+    if (from >= to) {
+      return -1;
+    }
+    int middle = (from + to) >>> 1;
+    select(points, nodes, from, to - 1, middle, depth);
+    int node = nodes[middle];
+    left[node] = build(points, nodes, from, middle, depth + 1);
+    right[node] = build(points, nodes, middle + 1, to, depth + 1);
+    sizes[node] = to - from;
+    return node;
+  }
+
+  private int collect(int node, int[] nodes) {
+    int count = 0;
+    int[] stack = new int[maxDepth(sizes[node]) * 2 + 2];
+    int top = 0;
+    stack[top++] = node;
+    while (top > 0) {
+      int current = stack[--top];
+      nodes[count++] = current;
+      if (top + 2 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      if (left[current] >= 0) {
+        stack[top++] = left[current];
+      }
+      if (right[current] >= 0) {
+        stack[top++] = right[current];
+      }
+    }
+    return count;
+  }
+
+  private double coordinate(PointStore points, int node, int depth) {
+    return depth % 2 == 0 ? points.getX(node) : points.getY(node);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > left.length) {
+      int newCapacity = Math.max(capacity, left.length * 2);
+      left = Arrays.copyOf(left, newCapacity);
+      right = Arrays.copyOf(right, newCapacity);
+      sizes = Arrays.copyOf(sizes, newCapacity);
+    }
+  }
+
+  private void insert(PointStore points, int node) {
+    ensureCapacity(node + 1);
+    left[node] = -1;
+    right[node] = -1;
+    sizes[node] = 1;
+
+    if (root < 0) {
+      root = node;
+      return;
+    }
+
+    int[] path = new int[maxDepth(node + 1) + 2];
+    int depth = 0;
+    int current = root;
+    while (true) {
+      path[depth] = current;
+      sizes[current]++;
+      boolean goLeft = coordinate(points, node, depth) < coordinate(points, current, depth);
+      int child = goLeft ? left[current] : right[current];
+      if (child < 0) {
+        if (goLeft) {
+          left[current] = node;
+        } else {
+          right[current] = node;
+        }
+        break;
+      }
+      current = child;
+      depth++;
+      if (depth >= path.length) {
+        path = Arrays.copyOf(path, path.length * 2);
+      }
+    }
+
+    if (depth + 1 > maxDepth(node + 1)) {
+      rebalance(points, path, depth, node);
+    }
+  }
+
+  private int maxDepth(int size) {
+    return (int) (Math.log(size) / Math.log(1.0 / ALPHA)) + 1;
+  }
+
+  private void rebalance(PointStore points, int[] path, int depth, int node) {
+    int child = node;
+    for (int i = depth; i >= 0; i--) {
+      int parent = path[i];
+      if (sizes[child] > ALPHA * sizes[parent]) {
+        int[] nodes = new int[sizes[parent]];
+        int count = collect(parent, nodes);
+        int subtree = build(points, nodes, 0, count, i);
+        if (i == 0) {
+          root = subtree;
+        } else if (left[path[i - 1]] == parent) {
+          left[path[i - 1]] = subtree;
+        } else {
+          right[path[i - 1]] = subtree;
+        }
+        return;
+      }
+      child = parent;
+    }
+  }
+
+  private void select(PointStore points, int[] nodes, int from, int to, int target, int depth) {
+    while (from < to) {
+      double pivot = coordinate(points, nodes[(from + to) >>> 1], depth);
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (coordinate(points, nodes[i], depth) < pivot) {
+          i++;
+        }
+        while (coordinate(points, nodes[j], depth) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = nodes[i];
+          nodes[i] = nodes[j];
+          nodes[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (target <= j) {
+        to = j;
+      } else if (target >= i) {
+        from = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import controllers.protocols.Point;
+import storage.PointStore;
+
+/**
+ * An index that compares the origin with every point on each query. It is thread-safe when the store is.
+ *
+ * <p>When there are at least {@link #setParallelThreshold(int) parallelThreshold} points, a query splits them into
+ * segments, finds the k nearest points in each segment in a fork-join pool, and merges the results.
+ *
+ * <p>A batch of queries is split into groups of origins that run in parallel. Each group makes a single pass over the
+ * points, block by block, and compares all its origins with a block while the block is in the CPU cache.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class LinearScanIndex implements PointIndex {
+
+  private static class ScanTask extends RecursiveTask<Neighbors> {
+
+    private final int from;
+
+    private final int k;
+
+    private final PointStore points;
+
+    private final int segmentSize;
+
+    private final int to;
+
+    private final double x;
+
+    private final double y;
+
+    public ScanTask(PointStore points, double x, double y, int k, int from, int to, int segmentSize) {
+      this.points = points;
+      this.x = x;
+      this.y = y;
+      this.k = k;
+      this.from = from;
+      this.to = to;
+      this.segmentSize = segmentSize;
+    }
+
+    @Override
+    protected Neighbors compute() {
+      if (to - from <= segmentSize) {
+        return scan(points, x, y, k, from, to);
+      }
+
+      int middle = (from + to) >>> 1;
+      ScanTask left = new ScanTask(points, x, y, k, from, middle, segmentSize);
+      ScanTask right = new ScanTask(points, x, y, k, middle, to, segmentSize);
+      left.fork();
+      Neighbors neighbors = right.compute();
+      neighbors.merge(left.join());
+      return neighbors;
+    }
+  }
+
+  private static final int BLOCK_SIZE = 1 << 12;
+
+  private static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+
+  private static final int MIN_SEGMENT_SIZE = 1 << 14;
+
+  private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private final PointStore store;
+
+  public LinearScanIndex(PointStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public void add(Point point) {
+    store.add(point);
+  }
+
+  @Override
+  public void addAll(List<Point> points) {
+    store.addAll(points);
+  }
+
+  @Override
+  public void clear() {
+    store.clear();
+  }
+
+  @Override
+  public List<Point> getNearestPoints(Point from, int k) {
+    return getNearestPoints(from, k, false);
+  }
+
+  @Override
+  public List<List<Point>> getNearestPointsBatch(List<Point> origins, int k) {
+    PointStore points = store.snapshot();
+    int size = points.size();
+    double[] xs = new double[origins.size()];
+    double[] ys = new double[origins.size()];
+    Neighbors[] neighbors = new Neighbors[origins.size()];
+    for (int i = 0; i < origins.size(); i++) {
+      xs[i] = origins.get(i).getX();
+      ys[i] = origins.get(i).getY();
+      neighbors[i] = new Neighbors(Math.max(k, 0));
+    }
+
+    BatchTask.Range range = (from, to) -> {
+      for (int blockStart = 0; blockStart < size; blockStart += BLOCK_SIZE) {
+        int blockEnd = Math.min(blockStart + BLOCK_SIZE, size);
+        for (int i = from; i < to; i++) {
+          scan(points, xs[i], ys[i], blockStart, blockEnd, neighbors[i]);
+        }
+      }
+    };
+    if (k > 0) {
+      if ((long) size * origins.size() < parallelThreshold) {
+        range.run(0, origins.size());
+      } else {
+        int grain = Math.max(origins.size() / (pool.getParallelism() * 4), 1);
+        pool.invoke(new BatchTask(range, 0, origins.size(), grain));
+      }
+    }
+
+    List<List<Point>> result = new ArrayList<>(origins.size());
+    for (Neighbors originNeighbors : neighbors) {
+      result.add(originNeighbors.toPoints(points));
+    }
+    return result;
+  }
+
+  @Override
+  public List<Point> getNearestPointsLazily(Point from, int k) {
+    return getNearestPoints(from, k, true);
+  }
+
+  @Override
+  public List<Point> getPointsInBox(Point min, Point max) {
+    double minX = min.getX();
+    double minY = min.getY();
+    double maxX = max.getX();
+    double maxY = max.getY();
+    PointStore points = store.snapshot();
+    List<Point> result = new ArrayList<>();
+    for (int i = 0; i < points.size(); i++) {
+      double x = points.getX(i);
+      double y = points.getY(i);
+      if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+        result.add(points.get(i));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<Point> getPointsWithinRadius(Point center, double radius) {
+    if (!(radius >= 0)) {
+      return Collections.emptyList();
+    }
+
+    double x = center.getX();
+    double y = center.getY();
+    PointStore points = store.snapshot();
+    List<Point> result = new ArrayList<>();
+    for (int i = 0; i < points.size(); i++) {
+      double xDistance = x - points.getX(i);
+      double yDistance = y - points.getY(i);
+      if (xDistance * xDistance + yDistance * yDistance <= radius * radius) {
+        result.add(points.get(i));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void loadSnapshot(Path file) throws IOException {
+    SnapshotFile snapshot = SnapshotFile.read(file);
+    store.load(snapshot.xs, snapshot.ys);
+  }
+
+  @Override
+  public void saveSnapshot(Path file) throws IOException {
+    SnapshotFile.write(file, getClass().getName(), store.snapshot(), 0);
+  }
+
+  public void setParallelThreshold(int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  private List<Point> getNearestPoints(Point from, int k, boolean lazily) {
+    if (k <= 0) {
+      return Collections.emptyList();
+    }
+
+    PointStore points = store.snapshot();
+    int size = points.size();
+    Neighbors neighbors;
+    if (size < parallelThreshold) {
+      neighbors = Neighbors.reuse(k);
+      scan(points, from.getX(), from.getY(), 0, size, neighbors);
+    } else {
+      int segmentSize = Math.max(size / (pool.getParallelism() * 4), MIN_SEGMENT_SIZE);
+      neighbors = pool.invoke(new ScanTask(points, from.getX(), from.getY(), k, 0, size, segmentSize));
+    }
+    return lazily ? neighbors.toLazyPoints(points) : neighbors.toPoints(points);
+  }
+
+  private static Neighbors scan(PointStore points, double x, double y, int k, int from, int to) {
+    Neighbors neighbors = new Neighbors(k);
+    scan(points, x, y, from, to, neighbors);
+    return neighbors;
+  }
+
+  private static void scan(PointStore points, double x, double y, int from, int to, Neighbors neighbors) {
+    for (int i = from; i < to; i++) {
+      double xDistance = x - points.getX(i);
+      double yDistance = y - points.getY(i);
+      neighbors.offer(xDistance * xDistance + yDistance * yDistance, i);
+    }
+  }
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import controllers.protocols.Point;
+import me.tfeng.toolbox.spring.Startable;
+import play.Logger;
+import play.Logger.ALogger;
+import storage.PointLog;
+
+/**
+ * An index that makes additions and clears durable in a write-ahead log before applying them to another index. Queries
+ * go directly to the other index.
+ *
+ * <p>Concurrent callers queue their requests for a single writer thread. The writer appends all the queued requests to
+ * the log, makes them durable with one fsync, applies them to the index in the order of the log, and only then returns
+ * to the callers. The more callers there are, the more requests share an fsync.
+ *
+ * <p>On start, the index is recovered from the latest snapshot in the log directory, followed by the logs written
+ * since. When the current log grows beyond {@link #setCompactionThreshold(long) compactionThreshold} bytes, the writer
+ * starts a new log, and a background thread saves a snapshot of the index and deletes the older logs and snapshots. The
+ * snapshot may already contain some of the points in the new log, and in any log started while it is saved; because
+ * each log records the number of points when it was started, the points of each log that are in the snapshot are
+ * skipped on recovery. The snapshot is discarded if the index is cleared while it is saved.
+ *
+ * <p>If a batch cannot be written, the log is truncated to where it was before the batch, so that the failed requests
+ * are not recovered later. If even that fails, the log is left as it is, and all further requests fail.
+ *
+ * <p>When the log directory is empty, requests are applied to the index directly.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class LoggedIndex implements PointIndex, Startable {
+
+  private static class Recovery {
+
+    /**
+     * The number of points loaded from the snapshot, or 0 once a clear is replayed.
+     */
+    private int loaded;
+
+    private boolean replayed;
+
+    public Recovery(int loaded) {
+      this.loaded = loaded;
+    }
+  }
+
+  private static class Request {
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private final List<Point> points;
+
+    public Request(List<Point> points) {
+      this.points = points;
+    }
+
+    private boolean isClear() {
+      return points == null;
+    }
+  }
+
+  private static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+  private static final ALogger LOG = Logger.of(LoggedIndex.class);
+
+  private static final String LOG_PREFIX = "log.";
+
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  private static final int MAX_REPLAY_BATCH_SIZE = 1 << 16;
+
+  private static final String SNAPSHOT_PREFIX = "snapshot.";
+
+  private static final Request STOP = new Request(null);
+
+  private static final long WRITE_TIMEOUT_SECONDS = 60;
+
+  private volatile long clears;
+
+  private volatile boolean compacting;
+
+  private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  private ExecutorService compactor;
+
+  private final Path directory;
+
+  /**
+   * The error that left records of failed requests in the log, after which no more requests are written.
+   */
+  private IOException failure;
+
+  private final PointIndex index;
+
+  private PointLog log;
+
+  private int logNumber;
+
+  private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+  private volatile Thread writer;
+
+  public LoggedIndex(PointIndex index, String directory) {
+    this.index = index;
+    this.directory = directory.isEmpty() ? null : Paths.get(directory);
+  }
+
+  @Override
+  public void add(Point point) {
+    if (directory == null) {
+      index.add(point);
+    } else {
+      submit(Collections.singletonList(point));
+    }
+  }
+
+  @Override
+  public void addAll(List<Point> points) {
+    if (directory == null) {
+      index.addAll(points);
+    } else {
+      submit(points);
+    }
+  }
+
+  @Override
+  public void clear() {
+    if (directory == null) {
+      index.clear();
+    } else {
+      submit(null);
+    }
+  }
+
+  @Override
+  public List<Point> getApproximateNearestPoints(Point from, int k, int maxCandidates) {
+    return index.getApproximateNearestPoints(from, k, maxCandidates);
+  }
+
+  @Override
+  public List<Point> getNearestPoints(Point from, int k) {
+    return index.getNearestPoints(from, k);
+  }
+
+  @Override
+  public List<List<Point>> getNearestPointsBatch(List<Point> origins, int k) {
+    return index.getNearestPointsBatch(origins, k);
+  }
+
+  @Override
+  public List<Point> getNearestPointsLazily(Point from, int k) {
+    return index.getNearestPointsLazily(from, k);
+  }
+
+  @Override
+  public List<Point> getPointsInBox(Point min, Point max) {
+    return index.getPointsInBox(min, max);
+  }
+
+  @Override
+  public List<Point> getPointsWithinRadius(Point center, double radius) {
+    return index.getPointsWithinRadius(center, radius);
+  }
+
+  @Override
+  public void loadSnapshot(Path file) throws IOException {
+    if (directory != null) {
+      throw new UnsupportedOperationException("Points are recovered from the log directory " + directory);
+    }
+    index.loadSnapshot(file);
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+    if (directory == null) {
+      return;
+    }
+
+    Files.createDirectories(directory);
+    int snapshot = numbers(SNAPSHOT_PREFIX).stream().mapToInt(Integer::intValue).max().orElse(-1);
+    if (snapshot >= 0) {
+      index.loadSnapshot(file(SNAPSHOT_PREFIX, snapshot));
+    }
+    Recovery recovery = new Recovery(index.size());
+    TreeSet<Integer> logs = numbers(LOG_PREFIX);
+    for (int number : logs.tailSet(snapshot)) {
+      replay(number, recovery, number == logs.last());
+    }
+    delete(Math.max(snapshot, 0));
+
+    logNumber = Math.max(logs.isEmpty() ? 0 : logs.last(), snapshot) + 1;
+    log = PointLog.create(file(LOG_PREFIX, logNumber), index.size());
+    compactor = Executors.newSingleThreadExecutor();
+    if (recovery.replayed) {
+      snapshot(logNumber);
+    }
+    writer = new Thread(this::write, "point-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    LOG.info("Recovered " + index.size() + " points from " + directory);
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+    if (directory == null) {
+      return;
+    }
+
+    Thread writer = this.writer;
+    this.writer = null;
+    requests.add(STOP);
+    writer.join();
+
+    // Save a final snapshot, so that the next start does not need to replay the logs.
+    if (failure == null && !log.isEmpty()) {
+      compact();
+    }
+    compactor.shutdown();
+    compactor.awaitTermination(1, TimeUnit.MINUTES);
+    log.close();
+  }
+
+  @Override
+  public void saveSnapshot(Path file) throws IOException {
+    index.saveSnapshot(file);
+  }
+
+  public void setCompactionThreshold(long compactionThreshold) {
+    this.compactionThreshold = compactionThreshold;
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  private void apply(List<Request> batch) {
+    List<Point> points = new ArrayList<>();
+    for (Request request : batch) {
+      if (request.isClear()) {
+        if (!points.isEmpty()) {
+          index.addAll(points);
+          points = new ArrayList<>();
+        }
+        index.clear();
+        clears++;
+      } else {
+        points.addAll(request.points);
+      }
+    }
+    if (!points.isEmpty()) {
+      index.addAll(points);
+    }
+  }
+
+  private void commit(List<Request> batch) {
+    if (failure != null) {
+      IllegalStateException e = new IllegalStateException("Log " + logNumber + " is not writable", failure);
+      batch.forEach(request -> request.future.completeExceptionally(e));
+      return;
+    }
+
+    long position = -1;
+    try {
+      position = log.size();
+      for (Request request : batch) {
+        if (request.isClear()) {
+          log.appendClear();
+        } else {
+          log.append(request.points);
+        }
+      }
+      log.force();
+    } catch (IOException e) {
+      LOG.error("Unable to write to log " + logNumber, e);
+      batch.forEach(request -> request.future.completeExceptionally(e));
+      if (position >= 0) {
+        truncate(position);
+      }
+      return;
+    }
+
+    try {
+      apply(batch);
+      batch.forEach(request -> request.future.complete(null));
+    } catch (RuntimeException e) {
+      batch.forEach(request -> request.future.completeExceptionally(e));
+    }
+  }
+
+  private void compact() {
+    if (rotate()) {
+      snapshot(logNumber);
+    }
+  }
+
+  /**
+   * Deletes the logs and snapshots numbered below the given number, and any snapshot that was not completed.
+   */
+  private void delete(int number) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        int fileNumber = number(name, LOG_PREFIX) >= 0 ? number(name, LOG_PREFIX) : number(name, SNAPSHOT_PREFIX);
+        if (fileNumber >= 0 ? fileNumber < number : name.startsWith(SNAPSHOT_PREFIX)) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  private Path file(String prefix, int number) {
+    return directory.resolve(prefix + number);
+  }
+
+  private static int number(String name, String prefix) {
+    if (name.startsWith(prefix)) {
+      try {
+        return Integer.parseInt(name.substring(prefix.length()));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private TreeSet<Integer> numbers(String prefix) throws IOException {
+    TreeSet<Integer> numbers = new TreeSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+      for (Path file : files) {
+        int number = number(file.getFileName().toString(), prefix);
+        if (number >= 0) {
+          numbers.add(number);
+        }
+      }
+    }
+    return numbers;
+  }
+
+  /**
+   * Applies a log to the index, skipping the points that the index already has because they were in the snapshot. The
+   * points from the base of the log up to the number of points in the snapshot are in the snapshot, unless the index
+   * has been cleared during the recovery.
+   */
+  private void replay(int number, Recovery recovery, boolean last) throws IOException {
+    Path file = file(LOG_PREFIX, number);
+    int base;
+    try {
+      base = PointLog.readBase(file);
+    } catch (IOException e) {
+      if (last) {
+        // The server stopped while creating the log, before anything was written to it.
+        Files.delete(file);
+        return;
+      }
+      throw e;
+    }
+
+    int[] skip = { Math.max(recovery.loaded - base, 0) };
+    List<Point> pending = new ArrayList<>();
+    PointLog.replay(file,
+        points -> {
+          recovery.replayed = true;
+          int skipped = Math.min(skip[0], points.size());
+          skip[0] -= skipped;
+          pending.addAll(points.subList(skipped, points.size()));
+          if (pending.size() >= MAX_REPLAY_BATCH_SIZE) {
+            index.addAll(new ArrayList<>(pending));
+            pending.clear();
+          }
+        },
+        () -> {
+          recovery.replayed = true;
+          recovery.loaded = 0;
+          pending.clear();
+          index.clear();
+          skip[0] = 0;
+        });
+    if (!pending.isEmpty()) {
+      index.addAll(pending);
+    }
+  }
+
+  private boolean rotate() {
+    try {
+      PointLog newLog = PointLog.create(file(LOG_PREFIX, logNumber + 1), index.size());
+      log.close();
+      log = newLog;
+      logNumber++;
+      return true;
+    } catch (IOException e) {
+      LOG.error("Unable to start log " + (logNumber + 1), e);
+      return false;
+    }
+  }
+
+  /**
+   * Saves a snapshot in the background to replace the logs numbered below the given number.
+   */
+  private void snapshot(int number) {
+    long clears = this.clears;
+    compacting = true;
+    compactor.execute(() -> {
+      try {
+        Path pending = directory.resolve(SNAPSHOT_PREFIX + number + ".pending");
+        index.saveSnapshot(pending);
+        if (this.clears == clears) {
+          Files.move(pending, file(SNAPSHOT_PREFIX, number), StandardCopyOption.ATOMIC_MOVE);
+          delete(number);
+        } else {
+          Files.delete(pending);
+        }
+      } catch (IOException e) {
+        LOG.error("Unable to save snapshot " + number, e);
+      } finally {
+        compacting = false;
+      }
+    });
+  }
+
+  private void submit(List<Point> points) {
+    if (writer == null) {
+      throw new IllegalStateException("Log is not open");
+    }
+    Request request = new Request(points);
+    requests.add(request);
+    try {
+      request.future.get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      throw new CompletionException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    } catch (TimeoutException e) {
+      throw new CompletionException("Request was not written to log " + logNumber + " in time", e);
+    }
+  }
+
+  /**
+   * Removes the records of a failed batch from the log, or stops writing to the log if they cannot be removed.
+   */
+  private void truncate(long position) {
+    try {
+      log.truncate(position);
+    } catch (IOException e) {
+      LOG.error("Unable to truncate log " + logNumber + "; no more requests will be written", e);
+      failure = e;
+    }
+  }
+
+  private void write() {
+    List<Request> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(requests.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      requests.drainTo(batch, MAX_BATCH_SIZE - 1);
+      boolean stop = batch.remove(STOP);
+      try {
+        if (!batch.isEmpty()) {
+          commit(batch);
+        }
+        if (!stop && failure == null && !compacting && log.size() > compactionThreshold) {
+          compact();
+        }
+      } catch (Throwable t) {
+        // The writer must keep running, or every later request would wait for it in vain.
+        LOG.error("Unable to write to log " + logNumber, t);
+        batch.forEach(request -> request.future.completeExceptionally(t));
+      }
+      batch.clear();
+      if (stop) {
+        return;
+      }
+    }
+  }
+}
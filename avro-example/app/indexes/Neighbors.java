@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import controllers.protocols.Point;
+import storage.PointStore;
+
+/**
+ * The k nearest points found so far during a query, ordered by squared distance and then by insertion order.
+ *
+ * <p>The squared distances and the indexes of the points are kept in a binary max-heap over two primitive arrays, with
+ * the farthest point at the root, so offering a point allocates nothing. A single query on a thread may reuse the
+ * arrays of the previous one with {@link #reuse(int)}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class Neighbors {
+
+  private static final int MAX_REUSED_K = 1 << 12;
+
+  private static final ThreadLocal<Neighbors> REUSED = ThreadLocal.withInitial(() -> new Neighbors(0));
+
+  private double[] distances;
+
+  private int[] indexes;
+
+  private int k;
+
+  private int size;
+
+  public Neighbors(int k) {
+    this.k = k;
+    distances = new double[k];
+    indexes = new int[k];
+  }
+
+  /**
+   * Returns the neighbors of the current thread, emptied for a query for k points. They must not be used once the
+   * thread starts another query.
+   */
+  public static Neighbors reuse(int k) {
+    if (k > MAX_REUSED_K) {
+      return new Neighbors(k);
+    }
+
+    Neighbors neighbors = REUSED.get();
+    if (neighbors.distances.length < k) {
+      neighbors.distances = new double[k];
+      neighbors.indexes = new int[k];
+    }
+    neighbors.k = k;
+    neighbors.size = 0;
+    return neighbors;
+  }
+
+  public boolean isFull() {
+    return size == k;
+  }
+
+  public void merge(Neighbors other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.distances[i], other.indexes[i]);
+    }
+  }
+
+  public void offer(double distance, int index) {
+    if (size < k) {
+      siftUp(size++, distance, index);
+    } else if (size > 0 && isNearer(distance, index, 0)) {
+      siftDown(0, distance, index);
+    }
+  }
+
+  /**
+   * Returns the points in a list that creates each of them from the store when it is read.
+   */
+  public List<Point> toLazyPoints(PointStore store) {
+    int[] sortedIndexes = new int[size];
+    for (int i = sortedIndexes.length - 1; i >= 0; i--) {
+      sortedIndexes[i] = poll();
+    }
+    return new AbstractList<Point>() {
+
+      @Override
+      public Point get(int i) {
+        return store.get(sortedIndexes[i]);
+      }
+
+      @Override
+      public int size() {
+        return sortedIndexes.length;
+      }
+    };
+  }
+
+  public List<Point> toPoints(PointStore store) {
+    Point[] points = new Point[size];
+    for (int i = points.length - 1; i >= 0; i--) {
+      points[i] = store.get(poll());
+    }
+    return Arrays.asList(points);
+  }
+
+  public double worstDistance() {
+    return size == 0 ? Double.POSITIVE_INFINITY : distances[0];
+  }
+
+  private boolean isNearer(double distance, int index, int slot) {
+    return distance < distances[slot] || distance == distances[slot] && index < indexes[slot];
+  }
+
+  private int poll() {
+    int index = indexes[0];
+    size--;
+    if (size > 0) {
+      siftDown(0, distances[size], indexes[size]);
+    }
+    return index;
+  }
+
+  private void siftDown(int slot, double distance, int index) {
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = slot * 2 + 1;
+      if (child + 1 < size && isNearer(distances[child], indexes[child], child + 1)) {
+        child++;
+      }
+      if (!isNearer(distance, index, child)) {
+        break;
+      }
+      distances[slot] = distances[child];
+      indexes[slot] = indexes[child];
+      slot = child;
+    }
+    distances[slot] = distance;
+    indexes[slot] = index;
+  }
+
+  private void siftUp(int slot, double distance, int index) {
+    while (slot > 0) {
+      int parent = (slot - 1) >>> 1;
+      if (isNearer(distance, index, parent)) {
+        break;
+      }
+      distances[slot] = distances[parent];
+      indexes[slot] = indexes[parent];
+      slot = parent;
+    }
+    distances[slot] = distance;
+    indexes[slot] = index;
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * A spatial index that answers nearest-neighbor and region queries over the points added to it. Results of
+ * nearest-neighbor queries are ordered by ascending distance from the origin, and those of region queries by the order
+ * in which the points were added.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public interface PointIndex {
+
+  void add(Point point);
+
+  /**
+   * Adds the points in one operation, which may be cheaper than adding them one by one.
+   */
+  void addAll(List<Point> points);
+
+  void clear();
+
+  /**
+   * Returns approximately the k nearest points from the origin, comparing it with a bounded number of candidates
+   * instead of finding the exact result. The default implementation returns the exact result.
+   */
+  default List<Point> getApproximateNearestPoints(Point from, int k, int maxCandidates) {
+    return getNearestPoints(from, k);
+  }
+
+  /**
+   * Returns the k nearest points from the origin, or all the points if fewer than k have been added.
+   */
+  List<Point> getNearestPoints(Point from, int k);
+
+  /**
+   * Returns the same points as {@link #getNearestPoints(Point, int)}, in a list that creates each point only when it is
+   * read, so that only the indexes of the points are held until then. The default implementation returns the points
+   * already created.
+   */
+  default List<Point> getNearestPointsLazily(Point from, int k) {
+    return getNearestPoints(from, k);
+  }
+
+  /**
+   * Returns the k nearest points from each of the origins, in the order of the origins.
+   */
+  List<List<Point>> getNearestPointsBatch(List<Point> origins, int k);
+
+  /**
+   * Returns the points inside the box with the given lower-left and upper-right corners, including its borders.
+   */
+  List<Point> getPointsInBox(Point min, Point max);
+
+  /**
+   * Returns the points whose distance from the center is at most the radius.
+   */
+  List<Point> getPointsWithinRadius(Point center, double radius);
+
+  /**
+   * Replaces the points with those in a snapshot file written by {@link #saveSnapshot(Path)}. The file is
+   * memory-mapped, and the structure of the index is restored from it rather than rebuilt when it was written by the
+   * same type of index. Points must not be added while the snapshot is loaded.
+   */
+  void loadSnapshot(Path file) throws IOException;
+
+  /**
+   * Writes the points and the structure of the index to a snapshot file, replacing the file only when it is complete.
+   */
+  void saveSnapshot(Path file) throws IOException;
+
+  int size();
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package indexes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import storage.PointStore;
+
+/**
+ * A snapshot of an index in a file, holding the coordinates of the points in two columns, followed by the int arrays
+ * that make up the structure of the index. Everything is written in little-endian byte order, and the columns are
+ * aligned to 8 bytes, so that they are memory-mapped back as they are.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class SnapshotFile {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int MAGIC = 0x50545331;
+
+  final int indexed;
+
+  final IntBuffer[] structure;
+
+  final String type;
+
+  final DoubleBuffer xs;
+
+  final DoubleBuffer ys;
+
+  private SnapshotFile(String type, int indexed, DoubleBuffer xs, DoubleBuffer ys, IntBuffer[] structure) {
+    this.type = type;
+    this.indexed = indexed;
+    this.xs = xs;
+    this.ys = ys;
+    this.structure = structure;
+  }
+
+  /**
+   * Memory-maps the snapshot in the file. The returned buffers stay valid after the file is closed.
+   */
+  static SnapshotFile read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), BUFFER_SIZE))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (header.remaining() < 16 || header.getInt() != MAGIC) {
+        throw new IOException("Not a point snapshot: " + file);
+      }
+      int size = header.getInt();
+      int indexed = header.getInt();
+      byte[] type = new byte[header.getInt()];
+      header.get(type);
+      int[] structureLengths = new int[header.getInt()];
+      for (int i = 0; i < structureLengths.length; i++) {
+        structureLengths[i] = header.getInt();
+      }
+
+      long offset = align(header.position());
+      DoubleBuffer xs = map(channel, offset, size * 8L).asDoubleBuffer();
+      offset += size * 8L;
+      DoubleBuffer ys = map(channel, offset, size * 8L).asDoubleBuffer();
+      offset += size * 8L;
+      IntBuffer[] structure = new IntBuffer[structureLengths.length];
+      for (int i = 0; i < structure.length; i++) {
+        structure[i] = map(channel, offset, structureLengths[i] * 4L).asIntBuffer();
+        offset += structureLengths[i] * 4L;
+      }
+      if (offset != channel.size()) {
+        throw new IOException("Point snapshot has " + channel.size() + " bytes instead of " + offset + ": " + file);
+      }
+      return new SnapshotFile(new String(type, StandardCharsets.UTF_8), indexed, xs, ys, structure);
+    }
+  }
+
+  /**
+   * Writes the points and the structure of the index to a temporary file, and then moves it to the given one, so that
+   * an existing snapshot is only replaced by a complete one.
+   */
+  static void write(Path file, String type, PointStore points, int indexed, IntBuffer... structure)
+      throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(MAGIC).putInt(points.size()).putInt(indexed).putInt(typeBytes.length).put(typeBytes);
+      buffer.putInt(structure.length);
+      for (IntBuffer ints : structure) {
+        buffer.putInt(ints.remaining());
+      }
+      while (buffer.position() < align(buffer.position())) {
+        buffer.put((byte) 0);
+      }
+
+      for (int i = 0; i < points.size(); i++) {
+        if (buffer.remaining() < 8) {
+          flush(channel, buffer);
+        }
+        buffer.putDouble(points.getX(i));
+      }
+      for (int i = 0; i < points.size(); i++) {
+        if (buffer.remaining() < 8) {
+          flush(channel, buffer);
+        }
+        buffer.putDouble(points.getY(i));
+      }
+      for (IntBuffer ints : structure) {
+        for (int i = ints.position(); i < ints.limit(); i++) {
+          if (buffer.remaining() < 4) {
+            flush(channel, buffer);
+          }
+          buffer.putInt(ints.get(i));
+        }
+      }
+      flush(channel, buffer);
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+    if (offset + length > channel.size()) {
+      throw new IOException("Point snapshot is truncated");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
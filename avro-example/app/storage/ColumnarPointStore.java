@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * A store that keeps the x and y coordinates in two primitive arrays. Avro records are only created for the points
+ * that are read back with {@link #get(int)}, so each stored point costs 16 bytes of heap, and scans over the
+ * coordinates read memory sequentially.
+ *
+ * <p>This store is not thread-safe. {@link SegmentedPointStore} may be used when points are added concurrently.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class ColumnarPointStore implements PointStore {
+
+  private static class Snapshot extends ReadOnlyPointStore {
+
+    private final int size;
+
+    private final double[] xs;
+
+    private final double[] ys;
+
+    public Snapshot(double[] xs, double[] ys, int size) {
+      this.xs = xs;
+      this.ys = ys;
+      this.size = size;
+    }
+
+    @Override
+    public double getX(int index) {
+      checkIndex(index, size);
+      return xs[index];
+    }
+
+    @Override
+    public double getY(int index) {
+      checkIndex(index, size);
+      return ys[index];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+  private final int initialCapacity;
+
+  private int size;
+
+  private double[] xs;
+
+  private double[] ys;
+
+  public ColumnarPointStore() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  public ColumnarPointStore(int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    xs = new double[initialCapacity];
+    ys = new double[initialCapacity];
+  }
+
+  @Override
+  public int add(Point point) {
+    ensureCapacity(size + 1);
+    xs[size] = point.getX();
+    ys[size] = point.getY();
+    return size++;
+  }
+
+  @Override
+  public int addAll(List<Point> points) {
+    int index = size;
+    ensureCapacity(size + points.size());
+    for (Point point : points) {
+      xs[size] = point.getX();
+      ys[size] = point.getY();
+      size++;
+    }
+    return index;
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+    xs = new double[initialCapacity];
+    ys = new double[initialCapacity];
+  }
+
+  @Override
+  public Point get(int index) {
+    return Point.newBuilder().setX(getX(index)).setY(getY(index)).build();
+  }
+
+  @Override
+  public double getX(int index) {
+    checkIndex(index, size);
+    return xs[index];
+  }
+
+  @Override
+  public double getY(int index) {
+    checkIndex(index, size);
+    return ys[index];
+  }
+
+  @Override
+  public void load(DoubleBuffer xs, DoubleBuffer ys) {
+    int size = xs.remaining();
+    double[] newXs = new double[Math.max(size, initialCapacity)];
+    double[] newYs = new double[Math.max(size, initialCapacity)];
+    xs.duplicate().get(newXs, 0, size);
+    ys.duplicate().get(newYs, 0, size);
+    this.xs = newXs;
+    this.ys = newYs;
+    this.size = size;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public PointStore snapshot() {
+    // Stored coordinates are never overwritten, because growing and clearing both allocate new arrays.
+    return new Snapshot(xs, ys, size);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > xs.length) {
+      int newCapacity = Math.max(Math.max(xs.length + (xs.length >> 1), DEFAULT_INITIAL_CAPACITY), capacity);
+      xs = Arrays.copyOf(xs, newCapacity);
+      ys = Arrays.copyOf(ys, newCapacity);
+    }
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+  }
+}
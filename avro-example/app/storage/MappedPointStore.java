@@ -0,0 +1,144 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * A store that reads the points loaded with {@link #load(DoubleBuffer, DoubleBuffer)} from the given buffers, without
+ * copying them, and appends points added later to another store. When the buffers are memory-mapped from a file, the
+ * loaded points are paged in by the operating system as they are read, instead of being copied onto the heap.
+ *
+ * <p>This store is as thread-safe as the store it appends to, except that loading must not overlap with adding.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class MappedPointStore implements PointStore {
+
+  private static class Mapping {
+
+    private final int size;
+
+    private final DoubleBuffer xs;
+
+    private final DoubleBuffer ys;
+
+    public Mapping(DoubleBuffer xs, DoubleBuffer ys) {
+      this.xs = xs;
+      this.ys = ys;
+      this.size = xs.limit();
+    }
+  }
+
+  private static class Snapshot extends ReadOnlyPointStore {
+
+    private final PointStore appended;
+
+    private final Mapping mapping;
+
+    public Snapshot(Mapping mapping, PointStore appended) {
+      this.mapping = mapping;
+      this.appended = appended;
+    }
+
+    @Override
+    public double getX(int index) {
+      return index < mapping.size ? mapping.xs.get(index) : appended.getX(index - mapping.size);
+    }
+
+    @Override
+    public double getY(int index) {
+      return index < mapping.size ? mapping.ys.get(index) : appended.getY(index - mapping.size);
+    }
+
+    @Override
+    public int size() {
+      return mapping.size + appended.size();
+    }
+  }
+
+  private static final Mapping EMPTY = new Mapping(DoubleBuffer.allocate(0), DoubleBuffer.allocate(0));
+
+  private final PointStore appended;
+
+  private volatile Mapping mapping = EMPTY;
+
+  public MappedPointStore(PointStore appended) {
+    this.appended = appended;
+  }
+
+  @Override
+  public int add(Point point) {
+    return mapping.size + appended.add(point);
+  }
+
+  @Override
+  public int addAll(List<Point> points) {
+    return mapping.size + appended.addAll(points);
+  }
+
+  @Override
+  public void clear() {
+    mapping = EMPTY;
+    appended.clear();
+  }
+
+  @Override
+  public Point get(int index) {
+    Mapping mapping = this.mapping;
+    if (index < mapping.size) {
+      return Point.newBuilder().setX(mapping.xs.get(index)).setY(mapping.ys.get(index)).build();
+    } else {
+      return appended.get(index - mapping.size);
+    }
+  }
+
+  @Override
+  public double getX(int index) {
+    Mapping mapping = this.mapping;
+    return index < mapping.size ? mapping.xs.get(index) : appended.getX(index - mapping.size);
+  }
+
+  @Override
+  public double getY(int index) {
+    Mapping mapping = this.mapping;
+    return index < mapping.size ? mapping.ys.get(index) : appended.getY(index - mapping.size);
+  }
+
+  @Override
+  public void load(DoubleBuffer xs, DoubleBuffer ys) {
+    appended.clear();
+    mapping = new Mapping(xs.slice(), ys.slice());
+  }
+
+  @Override
+  public int size() {
+    return mapping.size + appended.size();
+  }
+
+  @Override
+  public PointStore snapshot() {
+    return new Snapshot(mapping, appended.snapshot());
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import controllers.protocols.Point;
+
+/**
+ * An append-only log of added points and clears. Records are written as they are appended, but only become durable when
+ * {@link #force()} is called, so that a group of records can share a single fsync.
+ *
+ * <p>The log starts with the number of points that were stored when it was created. Each record holds a count of
+ * points, or -1 for a clear, followed by their coordinates and a CRC32 checksum. A record torn by a crash fails its
+ * checksum, and is removed with everything after it when the log is replayed.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class PointLog implements Closeable {
+
+  private static final int CLEAR = -1;
+
+  private static final int HEADER_SIZE = 8;
+
+  private static final int MAGIC = 0x504c4f47;
+
+  private final int base;
+
+  private final FileChannel channel;
+
+  private PointLog(FileChannel channel, int base) {
+    this.channel = channel;
+    this.base = base;
+  }
+
+  /**
+   * Creates a log in a new file, recording that there were base points stored when it was created.
+   */
+  public static PointLog create(Path file, int base) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(base);
+    header.flip();
+    write(channel, header);
+    channel.force(true);
+    return new PointLog(channel, base);
+  }
+
+  /**
+   * Returns the number of points that were stored when the log in the file was created.
+   */
+  public static int readBase(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      if (!read(channel, 0, header) || header.getInt(0) != MAGIC) {
+        throw new IOException("Not a point log: " + file);
+      }
+      return header.getInt(4);
+    }
+  }
+
+  /**
+   * Passes the points in each record of the log in the file to onAdd, and calls onClear for each clear, in order. The
+   * log is truncated after the last complete record.
+   */
+  public static void replay(Path file, Consumer<List<Point>> onAdd, Runnable onClear) throws IOException {
+    readBase(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long position = HEADER_SIZE;
+      ByteBuffer count = ByteBuffer.allocate(4);
+      while (read(channel, position, count)) {
+        int size = count.getInt(0);
+        if (size < CLEAR || size > (channel.size() - position) / 16) {
+          break;
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + Math.max(size, 0) * 16);
+        if (!read(channel, position, record)) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.capacity() - 4);
+        if ((int) crc.getValue() != record.getInt(record.capacity() - 4)) {
+          break;
+        }
+
+        if (size == CLEAR) {
+          onClear.run();
+        } else {
+          List<Point> points = new ArrayList<>(size);
+          for (int i = 0; i < size; i++) {
+            points.add(Point.newBuilder().setX(record.getDouble(4 + i * 16)).setY(record.getDouble(12 + i * 16))
+                .build());
+          }
+          onAdd.accept(points);
+        }
+        position += record.capacity();
+      }
+      if (position < channel.size()) {
+        channel.truncate(position);
+        channel.force(true);
+      }
+    }
+  }
+
+  public void append(List<Point> points) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(8 + points.size() * 16);
+    record.putInt(points.size());
+    for (Point point : points) {
+      record.putDouble(point.getX());
+      record.putDouble(point.getY());
+    }
+    appendRecord(record);
+  }
+
+  public void appendClear() throws IOException {
+    appendRecord(ByteBuffer.allocate(8).putInt(CLEAR));
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Makes the records appended so far durable.
+   */
+  public void force() throws IOException {
+    channel.force(false);
+  }
+
+  public int getBase() {
+    return base;
+  }
+
+  public boolean isEmpty() throws IOException {
+    return channel.size() <= HEADER_SIZE;
+  }
+
+  public long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Removes the records appended after the log had the given size, and makes the removal durable.
+   */
+  public void truncate(long size) throws IOException {
+    channel.truncate(size);
+    channel.force(true);
+  }
+
+  private void appendRecord(ByteBuffer record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 0, record.position());
+    record.putInt((int) crc.getValue());
+    record.flip();
+    write(channel, record);
+  }
+
+  private static boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * Storage of points, each identified by its insertion order starting from 0.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public interface PointStore {
+
+  int add(Point point);
+
+  /**
+   * Adds the points in one operation, and returns the index of the first one.
+   */
+  int addAll(List<Point> points);
+
+  void clear();
+
+  Point get(int index);
+
+  double getX(int index);
+
+  double getY(int index);
+
+  /**
+   * Replaces the stored points with those whose coordinates are in the buffers, between their positions and limits. The
+   * default implementation creates an Avro record for each point and adds them in one operation.
+   */
+  default void load(DoubleBuffer xs, DoubleBuffer ys) {
+    List<Point> points = new ArrayList<>(xs.remaining());
+    for (int i = 0; i < xs.remaining(); i++) {
+      points.add(Point.newBuilder().setX(xs.get(xs.position() + i)).setY(ys.get(ys.position() + i)).build());
+    }
+    clear();
+    addAll(points);
+  }
+
+  int size();
+
+  /**
+   * Returns a read-only view of the points currently stored. Points added after this call, or a subsequent
+   * {@link #clear()}, do not affect the view.
+   */
+  PointStore snapshot();
+}
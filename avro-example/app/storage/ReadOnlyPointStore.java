@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * Base class for the read-only views returned by {@link PointStore#snapshot()}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+abstract class ReadOnlyPointStore implements PointStore {
+
+  @Override
+  public int add(Point point) {
+    throw new UnsupportedOperationException("Point store is read-only");
+  }
+
+  @Override
+  public int addAll(List<Point> points) {
+    throw new UnsupportedOperationException("Point store is read-only");
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException("Point store is read-only");
+  }
+
+  @Override
+  public Point get(int index) {
+    return Point.newBuilder().setX(getX(index)).setY(getY(index)).build();
+  }
+
+  @Override
+  public PointStore snapshot() {
+    return this;
+  }
+}
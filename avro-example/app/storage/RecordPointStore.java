@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import controllers.protocols.Point;
+
+/**
+ * A store that keeps the Avro records as they are added. This store is not thread-safe.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class RecordPointStore implements PointStore {
+
+  private static class Snapshot extends ReadOnlyPointStore {
+
+    private final List<Point> points;
+
+    private final int size;
+
+    public Snapshot(List<Point> points, int size) {
+      this.points = points;
+      this.size = size;
+    }
+
+    @Override
+    public Point get(int index) {
+      if (index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+      }
+      return points.get(index);
+    }
+
+    @Override
+    public double getX(int index) {
+      return get(index).getX();
+    }
+
+    @Override
+    public double getY(int index) {
+      return get(index).getY();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  private List<Point> points = new ArrayList<>();
+
+  @Override
+  public int add(Point point) {
+    points.add(point);
+    return points.size() - 1;
+  }
+
+  @Override
+  public int addAll(List<Point> points) {
+    int index = this.points.size();
+    this.points.addAll(points);
+    return index;
+  }
+
+  @Override
+  public void clear() {
+    points = new ArrayList<>();
+  }
+
+  @Override
+  public Point get(int index) {
+    return points.get(index);
+  }
+
+  @Override
+  public double getX(int index) {
+    return points.get(index).getX();
+  }
+
+  @Override
+  public double getY(int index) {
+    return points.get(index).getY();
+  }
+
+  @Override
+  public int size() {
+    return points.size();
+  }
+
+  @Override
+  public PointStore snapshot() {
+    // Points are only appended to the list, and clearing replaces the list instead.
+    return new Snapshot(points, points.size());
+  }
+}
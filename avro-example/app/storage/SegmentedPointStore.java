@@ -0,0 +1,230 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import controllers.protocols.Point;
+
+/**
+ * A thread-safe columnar store that appends points into fixed-size segments without locking.
+ *
+ * <p>A writer reserves a range of indexes with an atomic addition, and writes the coordinates into the segments that own
+ * that range, in parallel with other writers. It then marks the slots as written, and moves the published size forward
+ * over every contiguous written slot, including those of other writers. Adding returns only after the new points are
+ * published. Readers see exactly the published points, and a {@link #snapshot()} holds on to them without any lock.
+ *
+ * <p>Segments are kept in a copy-on-write array that only changes when a new segment is needed. Clearing the store
+ * starts a new generation of segments, leaving existing snapshots intact.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class SegmentedPointStore implements PointStore {
+
+  private static class Generation {
+
+    private final AtomicInteger published = new AtomicInteger();
+
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    private volatile Segment[] segments = new Segment[0];
+
+    private void advance() {
+      while (true) {
+        int published = this.published.get();
+        int reserved = this.reserved.get();
+        Segment[] segments = this.segments;
+        int end = published;
+        while (end < reserved && (end >>> SEGMENT_SHIFT) < segments.length
+            && segments[end >>> SEGMENT_SHIFT].isWritten(end & SEGMENT_MASK)) {
+          end++;
+        }
+        if (end == published || this.published.compareAndSet(published, end)) {
+          return;
+        }
+      }
+    }
+
+    private Segment segment(int number) {
+      Segment[] segments = this.segments;
+      if (number < segments.length) {
+        return segments[number];
+      }
+      synchronized (this) {
+        segments = this.segments;
+        if (number >= segments.length) {
+          Segment[] newSegments = Arrays.copyOf(segments, number + 1);
+          for (int i = segments.length; i < newSegments.length; i++) {
+            newSegments[i] = new Segment();
+          }
+          this.segments = segments = newSegments;
+        }
+        return segments[number];
+      }
+    }
+  }
+
+  private static class Segment {
+
+    private final AtomicLongArray written = new AtomicLongArray(SEGMENT_SIZE / Long.SIZE);
+
+    private final double[] xs = new double[SEGMENT_SIZE];
+
+    private final double[] ys = new double[SEGMENT_SIZE];
+
+    private boolean isWritten(int offset) {
+      return (written.get(offset / Long.SIZE) & 1L << (offset % Long.SIZE)) != 0;
+    }
+
+    private void markWritten(int from, int to) {
+      while (from < to) {
+        int word = from / Long.SIZE;
+        int wordEnd = Math.min(to, (word + 1) * Long.SIZE);
+        long bits = (wordEnd - from == Long.SIZE ? -1L : (1L << (wordEnd - from)) - 1) << (from % Long.SIZE);
+        long value;
+        do {
+          value = written.get(word);
+        } while (!written.compareAndSet(word, value, value | bits));
+        from = wordEnd;
+      }
+    }
+  }
+
+  private static class Snapshot extends ReadOnlyPointStore {
+
+    private final Segment[] segments;
+
+    private final int size;
+
+    public Snapshot(Segment[] segments, int size) {
+      this.segments = segments;
+      this.size = size;
+    }
+
+    @Override
+    public double getX(int index) {
+      checkIndex(index, size);
+      return segments[index >>> SEGMENT_SHIFT].xs[index & SEGMENT_MASK];
+    }
+
+    @Override
+    public double getY(int index) {
+      checkIndex(index, size);
+      return segments[index >>> SEGMENT_SHIFT].ys[index & SEGMENT_MASK];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  private static final int SEGMENT_SHIFT = 14;
+
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private volatile Generation generation = new Generation();
+
+  @Override
+  public int add(Point point) {
+    return addAll(Collections.singletonList(point));
+  }
+
+  @Override
+  public int addAll(List<Point> points) {
+    // The coordinates are read before any index is reserved, so that a failure to read them cannot leave a reserved
+    // range unwritten and block the writers after it.
+    double[] xs = new double[points.size()];
+    double[] ys = new double[points.size()];
+    int count = 0;
+    for (Point point : points) {
+      xs[count] = point.getX();
+      ys[count] = point.getY();
+      count++;
+    }
+
+    Generation generation = this.generation;
+    int index = generation.reserved.getAndAdd(count);
+    int end = index + count;
+    for (int segmentStart = index; segmentStart < end; ) {
+      Segment segment = generation.segment(segmentStart >>> SEGMENT_SHIFT);
+      int from = segmentStart & SEGMENT_MASK;
+      int to = Math.min(from + end - segmentStart, SEGMENT_SIZE);
+      System.arraycopy(xs, segmentStart - index, segment.xs, from, to - from);
+      System.arraycopy(ys, segmentStart - index, segment.ys, from, to - from);
+      segment.markWritten(from, to);
+      segmentStart += to - from;
+    }
+
+    generation.advance();
+    while (generation.published.get() < end) {
+      // An earlier writer has not finished writing its points yet.
+      Thread.yield();
+      generation.advance();
+    }
+    return index;
+  }
+
+  @Override
+  public void clear() {
+    generation = new Generation();
+  }
+
+  @Override
+  public Point get(int index) {
+    return snapshot().get(index);
+  }
+
+  @Override
+  public double getX(int index) {
+    return snapshot().getX(index);
+  }
+
+  @Override
+  public double getY(int index) {
+    return snapshot().getY(index);
+  }
+
+  @Override
+  public int size() {
+    return generation.published.get();
+  }
+
+  @Override
+  public PointStore snapshot() {
+    Generation generation = this.generation;
+    // The size must be read first, so that the segments holding the published points are all visible.
+    int size = generation.published.get();
+    return new Snapshot(generation.segments, size);
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+  }
+}
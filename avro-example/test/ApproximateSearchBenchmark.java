@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import controllers.protocols.Point;
+import indexes.GridIndex;
+import indexes.KdTreeIndex;
+import indexes.PointIndex;
+import storage.SegmentedPointStore;
+
+/**
+ * Compares approximate nearest-point queries on {@link KdTreeIndex} and {@link GridIndex} with exact ones, reporting
+ * recall and latency for several numbers of candidates. Run with {@code sbt "test:runMain ApproximateSearchBenchmark"}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class ApproximateSearchBenchmark {
+
+  private static final int[] CANDIDATES = { 10, 20, 50, 100, 200, 500, 1000 };
+
+  private static final double CELL_SIZE = 0.002;
+
+  private static final int K = 10;
+
+  private static final int POINTS = 1_000_000;
+
+  private static final int QUERIES = 10_000;
+
+  public static void main(String[] args) {
+    Random random = new Random(0);
+    run("uniform", uniform(random), random);
+    run("clustered", clustered(random), random);
+  }
+
+  private static List<Point> clustered(Random random) {
+    List<Point> centers = uniform(random).subList(0, 100);
+    List<Point> points = new ArrayList<>(POINTS);
+    for (int i = 0; i < POINTS; i++) {
+      Point center = centers.get(random.nextInt(centers.size()));
+      points.add(Point.newBuilder()
+          .setX(center.getX() + random.nextGaussian() * 0.01)
+          .setY(center.getY() + random.nextGaussian() * 0.01)
+          .build());
+    }
+    return points;
+  }
+
+  private static void run(String name, List<Point> points, Random random) {
+    List<Point> origins = new ArrayList<>(QUERIES);
+    for (int i = 0; i < QUERIES; i++) {
+      origins.add(points.get(random.nextInt(points.size())));
+    }
+    run(name + ", kd-tree", new KdTreeIndex(new SegmentedPointStore()), points, origins);
+    run(name + ", grid", new GridIndex(new SegmentedPointStore(), CELL_SIZE), points, origins);
+  }
+
+  private static void run(String name, PointIndex index, List<Point> points, List<Point> origins) {
+    index.addAll(points);
+
+    // Warm up, and compute the exact results.
+    List<List<Point>> exactResults = new ArrayList<>(QUERIES);
+    for (Point origin : origins) {
+      exactResults.add(index.getNearestPoints(origin, K));
+    }
+    long start = System.nanoTime();
+    for (Point origin : origins) {
+      index.getNearestPoints(origin, K);
+    }
+    double exactLatency = (System.nanoTime() - start) / 1e3 / QUERIES;
+    System.out.println(String.format("%s, exact: %.2f us/query", name, exactLatency));
+
+    for (int candidates : CANDIDATES) {
+      for (Point origin : origins) {
+        index.getApproximateNearestPoints(origin, K, candidates);
+      }
+      List<List<Point>> results = new ArrayList<>(QUERIES);
+      start = System.nanoTime();
+      for (Point origin : origins) {
+        results.add(index.getApproximateNearestPoints(origin, K, candidates));
+      }
+      double latency = (System.nanoTime() - start) / 1e3 / QUERIES;
+
+      long found = 0;
+      for (int i = 0; i < QUERIES; i++) {
+        Set<Point> exact = new HashSet<>(exactResults.get(i));
+        found += results.get(i).stream().filter(exact::contains).count();
+      }
+      System.out.println(String.format("%s, %4d candidates: %.2f us/query, recall %.4f", name, candidates, latency,
+          (double) found / (QUERIES * K)));
+    }
+  }
+
+  private static List<Point> uniform(Random random) {
+    List<Point> points = new ArrayList<>(POINTS);
+    for (int i = 0; i < POINTS; i++) {
+      points.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+    }
+    return points;
+  }
+}
@@ -26,19 +26,37 @@ import static play.test.Helpers.running;
 import static play.test.Helpers.testServer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.avro.AvroRemoteException;
 import org.apache.avro.Protocol;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.ipc.Ipc;
 import org.apache.avro.ipc.generic.GenericRequestor;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -50,6 +68,16 @@ import controllers.protocols.KTooLargeError;
 import controllers.protocols.Point;
 import controllers.protocols.Points;
 import controllers.protocols.PointsClient;
+import indexes.CachedIndex;
+import indexes.GridIndex;
+import indexes.KdTreeIndex;
+import indexes.LinearScanIndex;
+import indexes.LoggedIndex;
+import indexes.PointIndex;
+import storage.ColumnarPointStore;
+import storage.PointLog;
+import storage.RecordPointStore;
+import storage.SegmentedPointStore;
 import me.tfeng.playmods.avro.AvroComponent;
 import me.tfeng.playmods.spring.ApplicationLoader;
 import me.tfeng.playmods.spring.ExceptionWrapper;
@@ -111,6 +139,95 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testGridIndexMatchesLinearScan() {
+    Random random = new Random(0);
+    List<Point> uniform = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      uniform.add(Point.newBuilder().setX(random.nextDouble() * 4 - 2).setY(random.nextDouble() * 4 - 2).build());
+    }
+    List<Point> clustered = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      double x = random.nextDouble() * 4 - 2;
+      double y = random.nextDouble() * 4 - 2;
+      for (int j = 0; j < 200; j++) {
+        clustered.add(Point.newBuilder()
+            .setX(x + random.nextGaussian() * 0.05)
+            .setY(y + random.nextGaussian() * 0.05)
+            .build());
+      }
+    }
+    // Points on the corners of the cells, many of which are at the same distance from an origin on a corner.
+    List<Point> corners = new ArrayList<>();
+    for (int i = -8; i <= 8; i++) {
+      for (int j = -8; j <= 8; j++) {
+        corners.add(Point.newBuilder().setX(i * 0.25).setY(j * 0.25).build());
+      }
+    }
+
+    for (List<Point> points : ImmutableList.of(ImmutableList.<Point>of(), uniform, clustered, corners)) {
+      GridIndex index = new GridIndex(new SegmentedPointStore(), 0.25);
+      LinearScanIndex expected = new LinearScanIndex(new RecordPointStore());
+      points.forEach(index::add);
+      points.forEach(expected::add);
+
+      for (int i = 0; i < 200; i++) {
+        Point from = i % 2 == 0
+            ? Point.newBuilder().setX(random.nextDouble() * 5 - 2.5).setY(random.nextDouble() * 5 - 2.5).build()
+            : Point.newBuilder().setX((random.nextInt(21) - 10) * 0.25).setY((random.nextInt(21) - 10) * 0.25).build();
+        int k = 1 + random.nextInt(100);
+        assertThat(index.getNearestPoints(from, k), is(expected.getNearestPoints(from, k)));
+
+        Point max = Point.newBuilder()
+            .setX(from.getX() + random.nextInt(8) * 0.25)
+            .setY(from.getY() + random.nextDouble())
+            .build();
+        assertThat(index.getPointsInBox(from, max), is(expected.getPointsInBox(from, max)));
+
+        double radius = i % 3 == 0 ? 0.5 : random.nextDouble();
+        assertThat(index.getPointsWithinRadius(from, radius), is(expected.getPointsWithinRadius(from, radius)));
+      }
+    }
+  }
+
+  @Test
+  public void testLinearScanIndexParallelScan() {
+    // Points on a coarse grid, so that many of them are at the same distance from an origin.
+    Random random = new Random(0);
+    List<Point> points = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      points.add(Point.newBuilder().setX(random.nextInt(100)).setY(random.nextInt(100)).build());
+    }
+    List<Point> origins = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      origins.add(i % 2 == 0
+          ? Point.newBuilder().setX(random.nextInt(100)).setY(random.nextInt(100)).build()
+          : Point.newBuilder().setX(random.nextDouble() * 100).setY(random.nextDouble() * 100).build());
+    }
+
+    // With a parallelism of 4, the points are split into 8 segments of 12500 points.
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      LinearScanIndex index = new LinearScanIndex(new ColumnarPointStore());
+      index.setParallelThreshold(1);
+      index.setPool(pool);
+      LinearScanIndex expected = new LinearScanIndex(new ColumnarPointStore());
+      index.addAll(points);
+      expected.addAll(points);
+
+      for (int k : new int[] { 1, 10, 1000, 12500, 12501, 30000, 100000, 100001 }) {
+        for (Point from : origins) {
+          assertThat(index.getNearestPoints(from, k), is(expected.getNearestPoints(from, k)));
+        }
+        assertThat(index.getNearestPointsLazily(origins.get(0), k), is(expected.getNearestPoints(origins.get(0), k)));
+        assertThat(index.getNearestPointsBatch(origins.subList(0, 4), k),
+            is(expected.getNearestPointsBatch(origins.subList(0, 4), k)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   @Test
   public void testPointsBinaryRequest() {
     TestServer server = testServer(3333, application);
@@ -176,6 +293,37 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testPointsBinaryRequestApproximateQuery() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        LinearScanIndex expected = new LinearScanIndex(new RecordPointStore());
+        Random random = new Random(0);
+
+        List<Point> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+          added.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+        }
+        points.addPoints(added);
+        expected.addAll(added);
+
+        Point from = Point.newBuilder().setX(0.5).setY(0.5).build();
+        assertThat(points.getApproximateNearestPoints(from, 10, 1).size(), is(10));
+        assertThat(points.getApproximateNearestPoints(from, 10, 1000), is(expected.getNearestPoints(from, 10)));
+        try {
+          points.getApproximateNearestPoints(from, 1001, 1000);
+          fail("KTooLargeError is expected");
+        } catch (KTooLargeError e) {
+          assertThat(e.getK(), is(1001));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
   @Test
   public void testPointsBinaryRequestAsync() {
     TestServer server = testServer(3333, application);
@@ -312,6 +460,269 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testPointsBinaryRequestBatches() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        PointsClient points = getAvroComponent().client(PointsClient.class, new URL("http://localhost:3333/points"));
+        Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+        // Send all the batches before waiting for any response.
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+          List<Point> batch = new ArrayList<>();
+          for (int j = 0; j < 100; j++) {
+            batch.add(Point.newBuilder().setX((double) i * 100 + j + 1).setY(0.0).build());
+          }
+          futures.add(points.addPoints(batch).toCompletableFuture());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+        List<Point> nearestPoints = points.getNearestPoints(center, 1000).toCompletableFuture().get();
+        assertThat(nearestPoints.size(), is(1000));
+        for (int i = 0; i < 1000; i++) {
+          assertThat(nearestPoints.get(i).getX(), is((double) i + 1));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsBinaryRequestBatchQuery() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+        Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+        Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+        Point six = Point.newBuilder().setX(6.0).setY(6.0).build();
+        points.addPoints(ImmutableList.of(one, five));
+
+        assertThat(points.getNearestPointsBatch(ImmutableList.of(center, six), 1),
+            is(ImmutableList.of(ImmutableList.of(one), ImmutableList.of(five))));
+        assertThat(points.getNearestPointsBatch(ImmutableList.of(center, six), 2),
+            is(ImmutableList.of(ImmutableList.of(one, five), ImmutableList.of(five, one))));
+        try {
+          points.getNearestPointsBatch(ImmutableList.of(center, six), 3);
+          fail("KTooLargeError is expected");
+        } catch (KTooLargeError e) {
+          assertThat(e.getK(), is(3));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsBinaryRequestConcurrentAdds() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        PointsClient points = getAvroComponent().client(PointsClient.class, new URL("http://localhost:3333/points"));
+        Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+          Point point = Point.newBuilder().setX((double) i).setY((double) i).build();
+          futures.add(points.addPoint(point).toCompletableFuture());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+        assertThat(points.getNearestPoints(center, 1000).toCompletableFuture().get().size(), is(1000));
+        points.getNearestPoints(center, 1001)
+            .thenApply(response -> {
+              fail("KTooLargeError is expected");
+              return null;
+            })
+            .exceptionally(error -> {
+              error = ExceptionWrapper.unwrap(error);
+              assertThat(error, instanceOf(KTooLargeError.class));
+              assertThat(((KTooLargeError) error).getK(), is(1001));
+              return null;
+            })
+            .toCompletableFuture()
+            .get();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsBinaryRequestMatchesLinearScan() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        LinearScanIndex expected = new LinearScanIndex(new RecordPointStore());
+        Random random = new Random(0);
+
+        for (int i = 0; i < 1000; i++) {
+          Point point = Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build();
+          points.addPoint(point);
+          expected.add(point);
+        }
+
+        for (int i = 0; i < 20; i++) {
+          Point from = Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build();
+          int k = 1 + random.nextInt(50);
+          assertThat(points.getNearestPoints(from, k), is(expected.getNearestPoints(from, k)));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsBinaryRequestRegionQuery() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+        Point two = Point.newBuilder().setX(2.0).setY(0.0).build();
+        Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+        Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+        points.addPoints(ImmutableList.of(one, two, five));
+
+        assertThat(points.getPointsInBox(center, Point.newBuilder().setX(2.0).setY(1.0).build()),
+            is(ImmutableList.of(one, two)));
+        assertThat(points.getPointsInBox(Point.newBuilder().setX(3.0).setY(3.0).build(), five),
+            is(ImmutableList.of(five)));
+        assertThat(points.getPointsInBox(five, center), is(ImmutableList.of()));
+        assertThat(points.getPointsWithinRadius(center, 1.5), is(ImmutableList.of(one)));
+        assertThat(points.getPointsWithinRadius(center, 2.0), is(ImmutableList.of(one, two)));
+        assertThat(points.getPointsWithinRadius(center, 0.5), is(ImmutableList.of()));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsCache() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        CachedIndex cache = application.injector().instanceOf(ApplicationManager.class).getBean(CachedIndex.class);
+        Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+        Point two = Point.newBuilder().setX(2.0).setY(2.0).build();
+        Point three = Point.newBuilder().setX(3.0).setY(3.0).build();
+        Point from = Point.newBuilder().setX(0.0).setY(0.0).build();
+        points.addPoints(ImmutableList.of(three, one, two));
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+
+        assertThat(points.getNearestPoints(from, 2), is(ImmutableList.of(one, two)));
+        assertThat(points.getNearestPoints(from, 2), is(ImmutableList.of(one, two)));
+        assertThat(points.getNearestPoints(from, 1), is(ImmutableList.of(one)));
+        assertThat(cache.getHits() - hits, is(2L));
+        assertThat(cache.getMisses() - misses, is(1L));
+
+        Point zero = Point.newBuilder().setX(0.5).setY(0.5).build();
+        points.addPoint(zero);
+        assertThat(points.getNearestPoints(from, 2), is(ImmutableList.of(zero, one)));
+        assertThat(cache.getMisses() - misses, is(2L));
+
+        points.clear();
+        try {
+          points.getNearestPoints(from, 1);
+          fail("KTooLargeError is expected");
+        } catch (KTooLargeError e) {
+          assertThat(e.getK(), is(1));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsStreamedNearestPoints() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        Random random = new Random(0);
+        List<Point> added = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+          added.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+        }
+        points.addPoints(added);
+        Point from = Point.newBuilder().setX(0.5).setY(0.5).build();
+        List<Point> expected = points.getNearestPoints(from, 4000);
+
+        HttpURLConnection connection = streamNearestPoints(from, 4000);
+        assertThat(connection.getResponseCode(), is(200));
+        List<Point> streamed = new ArrayList<>();
+        SpecificDatumReader<Point> reader = new SpecificDatumReader<>(Point.class);
+        try (InputStream stream = connection.getInputStream()) {
+          BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(stream, null);
+          for (long count = decoder.readArrayStart(); count > 0; count = decoder.arrayNext()) {
+            for (long i = 0; i < count; i++) {
+              streamed.add(reader.read(null, decoder));
+            }
+          }
+        }
+        assertThat(streamed, is(expected));
+
+        connection = streamNearestPoints(from, 5001);
+        assertThat(connection.getResponseCode(), is(400));
+        try (InputStream stream = connection.getErrorStream()) {
+          KTooLargeError error = new SpecificDatumReader<>(KTooLargeError.class)
+              .read(null, DecoderFactory.get().directBinaryDecoder(stream, null));
+          assertThat(error.getK(), is(5001));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testPointsSnapshot() {
+    TestServer server = testServer(3333, application);
+    running(server, () -> {
+      try {
+        Points points = getAvroComponent().client(Points.class, new URL("http://localhost:3333/points"));
+        PointIndex index = application.injector().instanceOf(ApplicationManager.class).getBean(PointIndex.class);
+        Random random = new Random(0);
+        List<Point> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+          added.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+        }
+        points.addPoints(added);
+        Point from = Point.newBuilder().setX(0.5).setY(0.5).build();
+        List<Point> expected = points.getNearestPoints(from, 10);
+
+        Path file = Files.createTempFile("points", ".snapshot");
+        try {
+          index.saveSnapshot(file);
+          points.clear();
+          assertThat(index.size(), is(0));
+
+          index.loadSnapshot(file);
+          assertThat(points.getNearestPoints(from, 10), is(expected));
+          Point center = Point.newBuilder().setX(0.5).setY(0.5).build();
+          points.addPoint(center);
+          assertThat(points.getNearestPoints(from, 1).get(0), is(center));
+          assertThat(points.getNearestPoints(from, 1001).size(), is(1001));
+        } finally {
+          Files.delete(file);
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
   @Test
   public void testPointsJsonRequest() {
     running(testServer(3333, application), () -> {
@@ -400,6 +811,150 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testPointsWriteAheadLog() throws Throwable {
+    Path directory = Files.createTempDirectory("points");
+    try {
+      Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+      Point two = Point.newBuilder().setX(2.0).setY(2.0).build();
+      Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+      Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+      LoggedIndex index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      index.addAll(ImmutableList.of(five, two));
+      index.clear();
+      index.add(two);
+      index.add(one);
+      index.onStop();
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one, two)));
+      index.add(five);
+      index.onStop();
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one, two, five)));
+      index.onStop();
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testPointsWriteAheadLogOverlappingSnapshot() throws Throwable {
+    Path directory = Files.createTempDirectory("points");
+    try {
+      Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+      Point two = Point.newBuilder().setX(2.0).setY(2.0).build();
+      Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+      Point six = Point.newBuilder().setX(6.0).setY(6.0).build();
+      Point seven = Point.newBuilder().setX(7.0).setY(7.0).build();
+      Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+      // Snapshot 2 was saved while logs 3 and 4 were started, and already contains the point in log 3.
+      KdTreeIndex snapshotIndex = new KdTreeIndex(new SegmentedPointStore());
+      snapshotIndex.addAll(ImmutableList.of(one, two, five, six));
+      snapshotIndex.saveSnapshot(directory.resolve("snapshot.2"));
+      writeLog(directory.resolve("log.1"), 0, ImmutableList.of(one, two));
+      writeLog(directory.resolve("log.2"), 2, ImmutableList.of(five));
+      writeLog(directory.resolve("log.3"), 3, ImmutableList.of(six));
+      writeLog(directory.resolve("log.4"), 4, ImmutableList.of(seven));
+      // The next snapshot was being saved when the server stopped.
+      Files.write(directory.resolve("snapshot.4.pending"), new byte[] { 1, 2, 3 });
+
+      LoggedIndex index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.size(), is(5));
+      assertThat(index.getNearestPoints(center, 10), is(ImmutableList.of(one, two, five, six, seven)));
+      assertThat(Files.exists(directory.resolve("snapshot.4.pending")), is(false));
+      index.onStop();
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.size(), is(5));
+      index.onStop();
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testPointsWriteAheadLogTornRecord() throws Throwable {
+    Path directory = Files.createTempDirectory("points");
+    try {
+      Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+      Point two = Point.newBuilder().setX(2.0).setY(2.0).build();
+      Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+      Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+      LoggedIndex index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      index.add(one);
+      index.add(two);
+      // The server crashes while the last record is written.
+      try (FileChannel channel = FileChannel.open(directory.resolve("log.1"), StandardOpenOption.WRITE)) {
+        channel.truncate(channel.size() - 1);
+      }
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one)));
+      index.add(five);
+      index.onStop();
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one, five)));
+      index.onStop();
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testPointsWriteAheadLogWithoutStop() throws Throwable {
+    Path directory = Files.createTempDirectory("points");
+    try {
+      Point one = Point.newBuilder().setX(1.0).setY(1.0).build();
+      Point two = Point.newBuilder().setX(2.0).setY(2.0).build();
+      Point five = Point.newBuilder().setX(5.0).setY(5.0).build();
+      Point center = Point.newBuilder().setX(0.0).setY(0.0).build();
+
+      // The server is killed without stopping the index, so no snapshot is saved and the log is replayed.
+      LoggedIndex index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      index.addAll(ImmutableList.of(five, two));
+      index.clear();
+      index.add(two);
+      index.add(one);
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one, two)));
+      index.add(five);
+      index.onStop();
+
+      index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+      index.onStart();
+      assertThat(index.getNearestPoints(center, 3), is(ImmutableList.of(one, two, five)));
+      index.onStop();
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  private void deleteDirectory(Path directory) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
   private AvroComponent getAvroComponent() {
     return application.injector().instanceOf(ApplicationManager.class).getBean(AvroComponent.class);
   }
@@ -413,4 +968,28 @@ public class IntegrationTest {
     Object request = reader.read(null, DecoderFactory.get().jsonDecoder(schema, data));
     return client.request(message, request);
   }
+
+  private HttpURLConnection streamNearestPoints(Point from, int k) throws IOException {
+    Schema schema = Points.PROTOCOL.getMessages().get("getNearestPoints").getRequest();
+    GenericData.Record request = new GenericData.Record(schema);
+    request.put("from", from);
+    request.put("k", k);
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:3333/points/stream/getNearestPoints").openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "avro/binary");
+    try (OutputStream stream = connection.getOutputStream()) {
+      BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(stream, null);
+      new SpecificDatumWriter<GenericData.Record>(schema).write(request, encoder);
+    }
+    return connection;
+  }
+
+  private void writeLog(Path file, int base, List<Point> points) throws IOException {
+    try (PointLog log = PointLog.create(file, base)) {
+      log.append(points);
+      log.force();
+    }
+  }
 }
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import controllers.protocols.Point;
+import indexes.KdTreeIndex;
+import indexes.LinearScanIndex;
+import indexes.PointIndex;
+import storage.SegmentedPointStore;
+
+/**
+ * Measures the throughput of concurrent writers adding points to an index backed by {@link SegmentedPointStore},
+ * while one reader keeps querying it. Run with {@code sbt "test:runMain PointStoreBenchmark"}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class PointStoreBenchmark {
+
+  private static final int POINTS_PER_THREAD = 1_000_000;
+
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    run("LinearScanIndex", () -> new LinearScanIndex(new SegmentedPointStore()), maxThreads);
+    run("KdTreeIndex", () -> new KdTreeIndex(new SegmentedPointStore()), maxThreads);
+  }
+
+  private static void run(String name, Supplier<PointIndex> indexSupplier, int maxThreads) throws Exception {
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double best = 0;
+      for (int round = 0; round < ROUNDS; round++) {
+        best = Math.max(best, measure(indexSupplier.get(), threads));
+      }
+      System.out.println(String.format("%s: %2d writer(s), %,.0f points/sec", name, threads, best));
+    }
+  }
+
+  private static double measure(PointIndex index, int threads) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    try {
+      List<Callable<Void>> writers = new ArrayList<>(threads);
+      for (int thread = 0; thread < threads; thread++) {
+        Random random = new Random(thread);
+        List<Point> points = new ArrayList<>(POINTS_PER_THREAD);
+        for (int i = 0; i < POINTS_PER_THREAD; i++) {
+          points.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+        }
+        writers.add(() -> {
+          for (Point point : points) {
+            index.add(point);
+          }
+          return null;
+        });
+      }
+
+      Point from = Point.newBuilder().setX(0.5).setY(0.5).build();
+      Future<?> reader = executor.submit(() -> {
+        while (!Thread.currentThread().isInterrupted()) {
+          index.getNearestPoints(from, 10);
+        }
+      });
+
+      long start = System.nanoTime();
+      for (Future<Void> writer : executor.invokeAll(writers)) {
+        writer.get();
+      }
+      long elapsed = System.nanoTime() - start;
+      reader.cancel(true);
+
+      int expected = threads * POINTS_PER_THREAD;
+      if (index.size() != expected) {
+        throw new IllegalStateException("Expected " + expected + " points, but found " + index.size());
+      }
+      return expected * 1e9 / elapsed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import controllers.protocols.Point;
+import indexes.KdTreeIndex;
+import indexes.LoggedIndex;
+import storage.SegmentedPointStore;
+
+/**
+ * Measures the rate at which concurrent callers add points through {@link LoggedIndex}, each waiting for its point to
+ * be durable. Run with {@code sbt "test:runMain WriteAheadLogBenchmark"}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class WriteAheadLogBenchmark {
+
+  private static final int MAX_THREADS = 64;
+
+  private static final int POINTS_PER_THREAD = 2_000;
+
+  public static void main(String[] args) throws Throwable {
+    for (int threads = 1; threads <= MAX_THREADS; threads *= 4) {
+      System.out.println(String.format("%2d caller(s), %,.0f points/sec", threads, measure(threads)));
+    }
+  }
+
+  private static double measure(int threads) throws Throwable {
+    Path directory = Files.createTempDirectory("points");
+    LoggedIndex index = new LoggedIndex(new KdTreeIndex(new SegmentedPointStore()), directory.toString());
+    index.onStart();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Callable<Void>> callers = new ArrayList<>(threads);
+      for (int thread = 0; thread < threads; thread++) {
+        Random random = new Random(thread);
+        callers.add(() -> {
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            index.add(Point.newBuilder().setX(random.nextDouble()).setY(random.nextDouble()).build());
+          }
+          return null;
+        });
+      }
+
+      long start = System.nanoTime();
+      for (Future<Void> caller : executor.invokeAll(callers)) {
+        caller.get();
+      }
+      return threads * POINTS_PER_THREAD * 1e9 / (System.nanoTime() - start);
+    } finally {
+      executor.shutdownNow();
+      index.onStop();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for (Path file : files) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    }
+  }
+}
@@ -25,47 +25,144 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
 import com.google.common.collect.Maps;
 
-import controllers.protocols.Message;
+import controllers.protocols.MessageClient;
 import controllers.protocols.RequestHeader;
 import controllers.protocols.UserMessage;
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
+import me.tfeng.toolbox.spring.ExtendedStartable;
 import play.Logger;
 import play.Logger.ALogger;
+import play.libs.concurrent.HttpExecution;
 import play.mvc.Controller;
 import play.mvc.Http.Request;
 import utils.Constants;
 
 /**
+ * Produces each message to Kafka without waiting for it on the request thread. The response is sent when the message
+ * is acknowledged by the broker, and fails if the message cannot be sent. The response is completed on the HTTP
+ * execution context of the request, so that Kafka's network thread is never used to run it.
+ * <p>
+ * The producer never blocks the request thread: {@code max.block.ms} is 0 in {@code producer.properties}, and the
+ * metadata of the topic is fetched in the background when the application is started, for at most
+ * {@code kafka-example.metadata-timeout} milliseconds. Messages received before that are produced when it ends. At
+ * most {@code kafka-example.max-in-flight} messages may be waiting to be acknowledged, and further messages are
+ * rejected at once. A message that does not fit in the buffer of the producer fails at once as well. The numbers of
+ * sent, failed and rejected messages are exported over JMX.
+ *
  * @author Thomas Feng (huining.feng@gmail.com)
  */
 @Component
-public class MessageImpl implements Message {
+@ManagedResource
+public class MessageImpl implements ExtendedStartable, InitializingBean, MessageClient {
 
   private static final ALogger LOG = Logger.of(MessageImpl.class);
 
-  private KafkaProducer<String, UserMessage> producer;
+  private static final long METADATA_RETRY_INTERVAL = 100;
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private Semaphore inFlight;
+
+  @Value("${kafka-example.max-in-flight:10000}")
+  private int maxInFlight;
+
+  private volatile CompletableFuture<Void> metadata;
+
+  private ExecutorService metadataFetcher;
+
+  @Value("${kafka-example.metadata-timeout:10000}")
+  private long metadataTimeout;
+
+  private volatile KafkaProducer<String, UserMessage> producer;
 
   @Autowired(required = false)
   @Qualifier("kafka-example.producer-properties")
   private Properties producerProperties;
 
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final AtomicLong sent = new AtomicLong();
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    inFlight = new Semaphore(maxInFlight);
+  }
+
+  @Override
+  public void afterStart() {
+    producer = new KafkaProducer<>(producerProperties);
+    metadataFetcher = Executors.newSingleThreadExecutor();
+    metadata = CompletableFuture.runAsync(this::fetchMetadata, metadataFetcher);
+  }
+
+  @Override
+  public void afterStop() {
+  }
+
+  @Override
+  public void beforeStart() {
+  }
+
   @Override
-  public Void send(UserMessage message) {
-    if (producer == null) {
-      producer = new KafkaProducer<>(producerProperties);
+  public void beforeStop() {
+    if (metadataFetcher != null) {
+      metadataFetcher.shutdownNow();
+    }
+    if (producer != null) {
+      producer.close();
     }
+  }
 
+  @ManagedAttribute(description = "Number of messages that could not be sent")
+  public long getFailed() {
+    return failed.get();
+  }
+
+  @ManagedAttribute(description = "Number of messages waiting to be acknowledged by the broker")
+  public int getInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  @ManagedAttribute(description = "Number of messages rejected because too many messages were in flight")
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  @ManagedAttribute(description = "Number of messages acknowledged by the broker")
+  public long getSent() {
+    return sent.get();
+  }
+
+  @Override
+  public void onStart() throws Throwable {
+  }
+
+  @Override
+  public void onStop() throws Throwable {
+  }
+
+  @Override
+  public CompletionStage<Void> send(UserMessage message) {
     Request request = Controller.request();
     Map<String, List<String>> query = Maps.transformValues(request.queryString(), value -> Arrays.asList(value));
     RequestHeader header = RequestHeader.newBuilder()
@@ -79,13 +176,62 @@ public class MessageImpl implements Message {
         .build();
     message.setRequestHeader(header);
 
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    if (!inFlight.tryAcquire()) {
+      rejected.incrementAndGet();
+      future.completeExceptionally(new RuntimeException("Too many Kafka events in flight to send message: " + message));
+      return future;
+    }
+
+    Executor executor = HttpExecution.defaultContext();
+    metadata.whenComplete((nothing, throwable) -> produce(message, future, executor));
+    return future;
+  }
+
+  private void fail(CompletableFuture<Void> future, UserMessage message, Exception e) {
+    failed.incrementAndGet();
+    LOG.error("Unable to send Kafka event for message: " + message, e);
+    future.completeExceptionally(new RuntimeException("Unable to send Kafka event for message: " + message, e));
+  }
+
+  private void fetchMetadata() {
+    // With max.block.ms set to 0, sending fails until the metadata of the topic is fetched.
+    long deadline = System.currentTimeMillis() + metadataTimeout;
+    while (true) {
+      try {
+        producer.partitionsFor(Constants.TOPIC);
+        return;
+      } catch (TimeoutException e) {
+        if (System.currentTimeMillis() >= deadline) {
+          LOG.warn("Unable to fetch metadata of Kafka topic " + Constants.TOPIC + " in " + metadataTimeout + "ms", e);
+          return;
+        }
+      }
+      try {
+        Thread.sleep(METADATA_RETRY_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void produce(UserMessage message, CompletableFuture<Void> future, Executor executor) {
     LOG.info("Producing message: " + message);
 
     try {
-      producer.send(new ProducerRecord<>(Constants.TOPIC, message.getSubject(), message));
-      return null;
+      producer.send(new ProducerRecord<>(Constants.TOPIC, message.getSubject(), message), (metadata, e) -> {
+        inFlight.release();
+        if (e == null) {
+          sent.incrementAndGet();
+          executor.execute(() -> future.complete(null));
+        } else {
+          executor.execute(() -> fail(future, message, e));
+        }
+      });
     } catch (Exception e) {
-      throw new RuntimeException("Unable to send Kafka event for message: " + message, e);
+      inFlight.release();
+      fail(future, message, e);
     }
   }
 }
@@ -18,10 +18,12 @@
  * limitations under the License.
  */
 
+import static org.hamcrest.core.Is.is;
 import static org.hamcrest.number.OrderingComparison.greaterThan;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static play.test.Helpers.running;
 import static play.test.Helpers.testServer;
 
@@ -30,13 +32,16 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import beans.MessageImpl;
 import controllers.protocols.MessageClient;
 import controllers.protocols.UserMessage;
 import me.tfeng.playmods.avro.AvroComponent;
@@ -63,6 +68,13 @@ public class IntegrationTest {
     application = new ApplicationLoader().load(new Context(Environment.simple()));
   }
 
+  @After
+  public void teardown() {
+    System.clearProperty("kafka-example.max-in-flight");
+    System.clearProperty("kafka-example.metadata-timeout");
+    System.clearProperty("kafka-example.producer-properties");
+  }
+
   @Test
   public void testKafkaEvents() {
     TestServer server = testServer(PORT, application);
@@ -112,7 +124,70 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testRejectedMessage() {
+    System.setProperty("kafka-example.max-in-flight", "0");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    TestServer server = testServer(PORT, application);
+    running(server, () -> {
+      try {
+        MessageClient client =
+            getAvroComponent().client(MessageClient.class, new URL("http", "localhost", PORT, "/message"));
+        try {
+          client.send(createMessage()).toCompletableFuture().get();
+          fail("Exception is expected");
+        } catch (ExecutionException e) {
+          MessageImpl messageImpl = getMessageImpl();
+          assertThat(messageImpl.getRejected(), is(1L));
+          assertThat(messageImpl.getFailed(), is(0L));
+          assertThat(messageImpl.getSent(), is(0L));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testUnreachableBroker() {
+    System.setProperty("kafka-example.metadata-timeout", "0");
+    System.setProperty("kafka-example.producer-properties", "test-unreachable-producer.properties");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    TestServer server = testServer(PORT, application);
+    running(server, () -> {
+      try {
+        MessageClient client =
+            getAvroComponent().client(MessageClient.class, new URL("http", "localhost", PORT, "/message"));
+        try {
+          client.send(createMessage()).toCompletableFuture().get();
+          fail("Exception is expected");
+        } catch (ExecutionException e) {
+          MessageImpl messageImpl = getMessageImpl();
+          assertThat(messageImpl.getFailed(), is(1L));
+          assertThat(messageImpl.getInFlight(), is(0));
+          assertThat(messageImpl.getRejected(), is(0L));
+          assertThat(messageImpl.getSent(), is(0L));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  private UserMessage createMessage() {
+    return UserMessage.newBuilder()
+        .setSubject("Raymond")
+        .setAction("reads")
+        .setObject("books")
+        .setRequestHeader(null)
+        .build();
+  }
+
   private AvroComponent getAvroComponent() {
     return application.injector().instanceOf(ApplicationManager.class).getBean(AvroComponent.class);
   }
+
+  private MessageImpl getMessageImpl() {
+    return application.injector().instanceOf(ApplicationManager.class).getBean(MessageImpl.class);
+  }
 }
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Required;
+
+import me.tfeng.toolbox.mongodb.OplogItem;
+import me.tfeng.toolbox.mongodb.OplogItemHandler;
+
+/**
+ * Passes each oplog item to a list of handlers in order, since an {@link me.tfeng.toolbox.mongodb.OplogListener} has
+ * only one handler.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class CompositeOplogItemHandler implements OplogItemHandler {
+
+  private List<OplogItemHandler> handlers;
+
+  @Override
+  public void handle(OplogItem oplogItem) {
+    for (OplogItemHandler handler : handlers) {
+      handler.handle(oplogItem);
+    }
+  }
+
+  @Required
+  public void setHandlers(List<OplogItemHandler> handlers) {
+    this.handlers = handlers;
+  }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Write-behind buffer that coalesces the documents inserted by concurrent callers into unordered {@code insertMany}
+ * batches.
+ *
+ * <p>A batch is sent when it reaches {@code mongodb-example.insert-batch-size} documents, or when the first document in
+ * it has waited {@code mongodb-example.insert-linger-ms}. The future returned for a document completes when the batch
+ * containing it is acknowledged, and fails only if that document is rejected. At most
+ * {@code mongodb-example.insert-capacity} documents may be waiting or being inserted; beyond that, callers are rejected
+ * immediately rather than blocked. The batches are written with the write concern set with
+ * {@code mongodb-example.insert-w} and {@code mongodb-example.insert-j}.
+ *
+ * <p>When the buffer is destroyed, the documents already queued are sent, and the buffer waits up to
+ * {@link #CLOSE_TIMEOUT_SECONDS} seconds for them to be acknowledged.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+@ManagedResource
+public class InsertBuffer implements DisposableBean, InitializingBean {
+
+  private static class Insert {
+
+    private final Document document;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    public Insert(Document document) {
+      this.document = document;
+    }
+  }
+
+  private static final Insert CLOSE = new Insert(null);
+
+  private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+  private static final ALogger LOG = Logger.of(InsertBuffer.class);
+
+  private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+  private final AtomicLong batches = new AtomicLong();
+
+  @Value("${mongodb-example.insert-batch-size:1000}")
+  private int batchSize;
+
+  @Value("${mongodb-example.insert-capacity:10000}")
+  private int capacity;
+
+  private volatile boolean closed;
+
+  private MongoCollection<Document> collection;
+
+  @Value("${mongodb-example.db-collection}")
+  private String dbCollection;
+
+  @Value("${mongodb-example.db-name}")
+  private String dbName;
+
+  private final AtomicLong documents = new AtomicLong();
+
+  private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+
+  @Value("${mongodb-example.insert-linger-ms:5}")
+  private long lingerMillis;
+
+  @Autowired
+  private MongoClient mongoClient;
+
+  private Semaphore permits;
+
+  private final BlockingQueue<Insert> queue = new LinkedBlockingQueue<>();
+
+  @Value("${mongodb-example.insert-j:false}")
+  private boolean writeConcernJ;
+
+  @Value("${mongodb-example.insert-w:1}")
+  private String writeConcernW;
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    collection = mongoClient.getDatabase(dbName).getCollection(dbCollection)
+        .withWriteConcern(WriteConcerns.of(writeConcernW, writeConcernJ));
+    permits = new Semaphore(capacity);
+    flusher.execute(this::flush);
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    closed = true;
+    queue.add(CLOSE);
+    flusher.shutdown();
+    if (!flusher.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      LOG.warn("Timed out sending the pending documents");
+      flusher.shutdownNow();
+    }
+
+    // Documents queued while the buffer was being closed are not sent.
+    Insert insert;
+    while ((insert = queue.poll()) != null) {
+      if (insert != CLOSE) {
+        insert.future.completeExceptionally(new IllegalStateException("Insert buffer is closed"));
+      }
+    }
+
+    if (!permits.tryAcquire(capacity, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      LOG.warn("Timed out waiting for " + getPendingDocuments() + " documents to be acknowledged");
+    }
+  }
+
+  @ManagedAttribute
+  public long getBatches() {
+    return batches.get();
+  }
+
+  @ManagedAttribute
+  public long getDocuments() {
+    return documents.get();
+  }
+
+  @ManagedAttribute
+  public int getPendingDocuments() {
+    return capacity - permits.availablePermits();
+  }
+
+  /**
+   * Queues a document to be inserted in the next batch, or rejects it without blocking if the buffer is full.
+   */
+  public CompletionStage<Void> insert(Document document) {
+    if (closed) {
+      return failed(new IllegalStateException("Insert buffer is closed"));
+    }
+    if (!permits.tryAcquire()) {
+      return failed(new RejectedExecutionException("Insert buffer is full"));
+    }
+
+    Insert insert = new Insert(document);
+    insert.future.whenComplete((nothing, throwable) -> permits.release());
+    queue.add(insert);
+    return insert.future;
+  }
+
+  private static CompletionStage<Void> failed(Throwable throwable) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    future.completeExceptionally(throwable);
+    return future;
+  }
+
+  private void complete(List<Insert> batch, Throwable throwable) {
+    if (throwable == null) {
+      batch.forEach(insert -> insert.future.complete(null));
+    } else if (throwable instanceof MongoBulkWriteException
+        && ((MongoBulkWriteException) throwable).getWriteConcernError() == null) {
+      MongoBulkWriteException exception = (MongoBulkWriteException) throwable;
+      for (BulkWriteError error : exception.getWriteErrors()) {
+        batch.set(error.getIndex(), null).future.completeExceptionally(
+            new MongoWriteException(error, exception.getServerAddress()));
+      }
+      batch.stream().filter(insert -> insert != null).forEach(insert -> insert.future.complete(null));
+    } else {
+      batch.forEach(insert -> insert.future.completeExceptionally(throwable));
+    }
+  }
+
+  private void flush() {
+    try {
+      boolean closing = false;
+      while (!closing && !Thread.currentThread().isInterrupted()) {
+        Insert first = queue.take();
+        if (first == CLOSE) {
+          break;
+        }
+        List<Insert> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < batchSize) {
+          queue.drainTo(batch, batchSize - batch.size());
+          if (batch.remove(CLOSE)) {
+            // Send what is left without waiting for more.
+            closing = true;
+            break;
+          }
+          long remaining = deadline - System.nanoTime();
+          if (batch.size() >= batchSize || remaining <= 0) {
+            break;
+          }
+          Insert insert = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (insert == null) {
+            break;
+          } else if (insert == CLOSE) {
+            closing = true;
+            break;
+          }
+          batch.add(insert);
+        }
+
+        List<Document> documents = new ArrayList<>(batch.size());
+        batch.forEach(insert -> documents.add(insert.document));
+        batches.incrementAndGet();
+        this.documents.addAndGet(documents.size());
+        try {
+          collection.insertMany(documents, UNORDERED, (nothing, throwable) -> complete(batch, throwable));
+        } catch (RuntimeException e) {
+          LOG.error("Unable to insert " + documents.size() + " documents", e);
+          complete(batch, e);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
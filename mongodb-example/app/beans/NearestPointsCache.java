@@ -0,0 +1,205 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import controllers.protocols.Point;
+import me.tfeng.toolbox.mongodb.OplogItem;
+import me.tfeng.toolbox.mongodb.OplogItemHandler;
+
+/**
+ * Results of {@link PointsImpl#getNearestPoints(Point, int)}, cached by origin in least recently used order.
+ *
+ * <p>A query for fewer points from the same origin is answered with the first points of a cached result. The cache is
+ * bounded by the total number of points in its results. Each result is stamped with the version of the cache when its
+ * query started, and {@link #invalidate()} increments the version and drops all results, so a result read before a
+ * write is never cached after it. Writes through this server invalidate the cache when they are acknowledged, and writes
+ * by other servers and clients when they appear in the oplog. The oplog items are passed to the cache after
+ * {@link PointReplica}, so that a result computed from the replica before it applies a write is not cached after it.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+@ManagedResource
+public class NearestPointsCache implements OplogItemHandler {
+
+  private static class Origin {
+
+    private final double x;
+
+    private final double y;
+
+    public Origin(Point point) {
+      x = point.getX();
+      y = point.getY();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Origin)) {
+        return false;
+      }
+      Origin origin = (Origin) object;
+      return Double.compare(x, origin.x) == 0 && Double.compare(y, origin.y) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Double.hashCode(x) * 31 + Double.hashCode(y);
+    }
+  }
+
+  private static class Result {
+
+    private final int k;
+
+    private final List<Point> points;
+
+    public Result(int k, List<Point> points) {
+      this.k = k;
+      this.points = points;
+    }
+  }
+
+  @Value("${mongodb-example.cache-capacity}")
+  private int capacity;
+
+  @Value("${mongodb-example.db-collection}")
+  private String dbCollection;
+
+  @Value("${mongodb-example.db-name}")
+  private String dbName;
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final LinkedHashMap<Origin, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+
+  private int size;
+
+  private volatile long version;
+
+  /**
+   * Returns the k nearest points from the given origin if they are cached, or null otherwise.
+   */
+  public List<Point> get(Point from, int k) {
+    if (capacity > 0) {
+      synchronized (this) {
+        Result result = results.get(new Origin(from));
+        if (result != null && k <= result.k) {
+          hits.incrementAndGet();
+          return result.points.size() <= k ? result.points : result.points.subList(0, k);
+        }
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  @ManagedAttribute(description = "Number of points in the cached results")
+  public synchronized int getCachedPoints() {
+    return size;
+  }
+
+  @ManagedAttribute(description = "Number of results evicted to stay within the capacity")
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute(description = "Number of queries answered from the cache")
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute(description = "Number of queries sent to MongoDB")
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public void handle(OplogItem oplogItem) {
+    switch (oplogItem.getOp()) {
+      case INSERT:
+      case UPDATE:
+      case DELETE:
+        invalidate();
+        break;
+      case COMMAND:
+        if (OplogCommands.isClear(oplogItem, dbName, dbCollection)) {
+          invalidate();
+        }
+        break;
+      default:
+    }
+  }
+
+  public synchronized void invalidate() {
+    version++;
+    results.clear();
+    size = 0;
+  }
+
+  /**
+   * Caches the k nearest points from the given origin, if no write has invalidated the cache since the query started at
+   * the given version.
+   */
+  public synchronized void put(Point from, int k, List<Point> points, long version) {
+    if (version != this.version || points.size() > capacity) {
+      return;
+    }
+
+    Origin origin = new Origin(from);
+    Result previous = results.get(origin);
+    if (previous != null) {
+      if (previous.k >= k) {
+        return;
+      }
+      size -= previous.points.size();
+    }
+    results.put(origin, new Result(k, Collections.unmodifiableList(points)));
+    size += points.size();
+
+    Iterator<Result> iterator = results.values().iterator();
+    while (size > capacity) {
+      Result eldest = iterator.next();
+      iterator.remove();
+      size -= eldest.points.size();
+      evictions.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import controllers.protocols.Point;
+
+/**
+ * The k nearest points found so far while the points of a query are read, ordered by squared distance and then by
+ * the order in which they are read.
+ *
+ * <p>The squared distances and the read orders are kept in a binary max-heap over two primitive arrays, with the
+ * farthest point at the root, so offering a point allocates nothing. Only the k points in the heap are converted to
+ * Avro records. Because the points of one query may be read on different threads of the driver, the arrays are reused
+ * through a small pool instead of per thread.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class Neighbors {
+
+  private static final int MAX_REUSED_K = 1 << 12;
+
+  private static final BlockingQueue<Neighbors> POOL =
+      new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 4);
+
+  private double[] distances;
+
+  private ScannedPoint[] points;
+
+  private int k;
+
+  private int offered;
+
+  private int[] orders;
+
+  private int size;
+
+  private Neighbors(int capacity) {
+    distances = new double[capacity];
+    points = new ScannedPoint[capacity];
+    orders = new int[capacity];
+  }
+
+  /**
+   * Returns empty neighbors for a query for k points, reusing the arrays of a query that has completed if possible.
+   */
+  public static Neighbors acquire(int k) {
+    Neighbors neighbors = k > MAX_REUSED_K ? null : POOL.poll();
+    if (neighbors == null) {
+      neighbors = new Neighbors(k);
+    } else if (neighbors.distances.length < k) {
+      neighbors.distances = new double[k];
+      neighbors.points = new ScannedPoint[k];
+      neighbors.orders = new int[k];
+    }
+    neighbors.k = k;
+    neighbors.offered = 0;
+    neighbors.size = 0;
+    return neighbors;
+  }
+
+  /**
+   * Returns the squared distance of the farthest of the points found so far, or infinity if none is found.
+   */
+  public double getFarthestDistance() {
+    return size == 0 ? Double.POSITIVE_INFINITY : distances[0];
+  }
+
+  public boolean isFull() {
+    return size >= k;
+  }
+
+  /**
+   * Offers the points found by other neighbors, and releases the arrays of the other neighbors for another query.
+   */
+  public void merge(Neighbors neighbors) {
+    for (int i = 0; i < neighbors.size; i++) {
+      offer(neighbors.distances[i], neighbors.points[i]);
+      neighbors.points[i] = null;
+    }
+    neighbors.size = 0;
+    if (neighbors.distances.length <= MAX_REUSED_K) {
+      POOL.offer(neighbors);
+    }
+  }
+
+  public void offer(double distance, ScannedPoint point) {
+    int order = offered++;
+    if (size < k) {
+      siftUp(size++, distance, order, point);
+    } else if (size > 0 && isNearer(distance, order, 0)) {
+      siftDown(0, distance, order, point);
+    }
+  }
+
+  /**
+   * Returns the points in the order of their distances, and releases the arrays for another query.
+   */
+  public List<Point> release() {
+    Point[] nearestPoints = new Point[size];
+    while (size > 0) {
+      ScannedPoint point = points[0];
+      size--;
+      if (size > 0) {
+        siftDown(0, distances[size], orders[size], points[size]);
+      }
+      points[size] = null;
+      nearestPoints[size] = point.toPoint();
+    }
+    if (distances.length <= MAX_REUSED_K) {
+      POOL.offer(this);
+    }
+    return Arrays.asList(nearestPoints);
+  }
+
+  private boolean isNearer(double distance, int order, int slot) {
+    return distance < distances[slot] || distance == distances[slot] && order < orders[slot];
+  }
+
+  private void siftDown(int slot, double distance, int order, ScannedPoint point) {
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = slot * 2 + 1;
+      if (child + 1 < size && isNearer(distances[child], orders[child], child + 1)) {
+        child++;
+      }
+      if (!isNearer(distance, order, child)) {
+        break;
+      }
+      set(slot, distances[child], orders[child], points[child]);
+      slot = child;
+    }
+    set(slot, distance, order, point);
+  }
+
+  private void siftUp(int slot, double distance, int order, ScannedPoint point) {
+    while (slot > 0) {
+      int parent = (slot - 1) >>> 1;
+      if (isNearer(distance, order, parent)) {
+        break;
+      }
+      set(slot, distances[parent], orders[parent], points[parent]);
+      slot = parent;
+    }
+    set(slot, distance, order, point);
+  }
+
+  private void set(int slot, double distance, int order, ScannedPoint point) {
+    distances[slot] = distance;
+    orders[slot] = order;
+    points[slot] = point;
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import org.bson.Document;
+
+import me.tfeng.toolbox.mongodb.OplogItem;
+
+/**
+ * Recognizes the commands in the oplog that remove all the points in the collection.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+final class OplogCommands {
+
+  private OplogCommands() {
+  }
+
+  /**
+   * Returns whether the oplog item is a command that drops the collection or its database, renames the collection, or
+   * replaces it with another collection. {@link PointsImpl#clear()} replaces the collection with an empty shadow
+   * collection when {@code mongodb-example.shadow-collection} is set.
+   *
+   * <p>A drop is recorded with the namespace {@code <database>.$cmd} of the database it is run on, which must be the
+   * database of the collection. A rename is run on the admin database, and names the collections in full.
+   */
+  public static boolean isClear(OplogItem oplogItem, String dbName, String dbCollection) {
+    Document command = oplogItem.getO();
+    if (command == null) {
+      return false;
+    }
+    String namespace = dbName + "." + dbCollection;
+    boolean inDatabase = oplogItem.getNs() != null && oplogItem.getNs().startsWith(dbName + ".");
+    return inDatabase && (dbCollection.equals(command.get("drop")) || command.containsKey("dropDatabase"))
+        || namespace.equals(command.get("renameCollection")) || namespace.equals(command.get("to"));
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.async.client.MongoClient;
+
+import me.tfeng.toolbox.mongodb.OplogItem;
+import me.tfeng.toolbox.mongodb.OplogItemHandler;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Number of points in the collection, counted once at startup and then kept up to date from the inserts, deletes and
+ * clears in the oplog, so that reading it does not query the database.
+ *
+ * <p>The count lags behind the collection by the delay of the oplog. The initial count is taken asynchronously. Until
+ * it arrives, the changes seen in the oplog are kept aside and are added to it when it does. A clear seen before it
+ * arrives makes it obsolete, so it is then discarded. Writes made while the collection is being counted may be counted
+ * twice.
+ *
+ * <p>{@link PointsImpl#clear()} calls {@link #expectClear()} before it removes the points. The count is then 0, and
+ * oplog items are ignored until the clear is seen in the oplog, because every item before the clear is for a point
+ * that it removes. If the clear fails, {@link #cancelClear()} counts the collection again.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+@ManagedResource
+public class PointCounter implements InitializingBean, OplogItemHandler {
+
+  private static final ALogger LOG = Logger.of(PointCounter.class);
+
+  private final AtomicLong count = new AtomicLong();
+
+  @Value("${mongodb-example.db-collection}")
+  private String dbCollection;
+
+  @Value("${mongodb-example.db-name}")
+  private String dbName;
+
+  private int expectedClears;
+
+  @Autowired
+  private MongoClient mongoClient;
+
+  private long pendingDelta;
+
+  private boolean seeding;
+
+  private long seeds;
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    seed();
+  }
+
+  /**
+   * Stops waiting for a clear expected with {@link #expectClear()} that has failed, and counts the collection again.
+   */
+  public synchronized void cancelClear() {
+    if (expectedClears > 0) {
+      expectedClears--;
+    }
+    if (expectedClears == 0) {
+      seed();
+    }
+  }
+
+  /**
+   * Sets the count to 0 until the clear that is about to be made is seen in the oplog.
+   */
+  public synchronized void expectClear() {
+    expectedClears++;
+    count.set(0);
+  }
+
+  @ManagedAttribute
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public void handle(OplogItem oplogItem) {
+    switch (oplogItem.getOp()) {
+      case INSERT:
+        update(1);
+        break;
+      case DELETE:
+        update(-1);
+        break;
+      case COMMAND:
+        if (OplogCommands.isClear(oplogItem, dbName, dbCollection)) {
+          // With a shadow collection, a clear first renames the collection away, and is complete only when the shadow
+          // collection is renamed to it.
+          clear(!(dbName + "." + dbCollection).equals(oplogItem.getO().get("renameCollection")));
+        }
+        break;
+      default:
+    }
+  }
+
+  private synchronized void clear(boolean complete) {
+    if (complete && expectedClears > 0) {
+      expectedClears--;
+    }
+    seeding = false;
+    count.set(0);
+  }
+
+  private synchronized void seed() {
+    long seed = ++seeds;
+    seeding = true;
+    pendingDelta = 0;
+    count.set(0);
+    mongoClient.getDatabase(dbName).getCollection(dbCollection).count((count, throwable) -> {
+      synchronized (this) {
+        if (seeds != seed || !seeding) {
+          return;
+        }
+        seeding = false;
+        if (throwable == null) {
+          this.count.set(Math.max(count + pendingDelta, 0));
+        } else {
+          LOG.error("Unable to count points", throwable);
+          this.count.set(Math.max(pendingDelta, 0));
+        }
+      }
+    });
+  }
+
+  private synchronized void update(long delta) {
+    if (expectedClears > 0) {
+      return;
+    }
+    if (seeding) {
+      pendingDelta += delta;
+      count.set(Math.max(pendingDelta, 0));
+    } else {
+      count.updateAndGet(count -> Math.max(count + delta, 0));
+    }
+  }
+}
@@ -0,0 +1,527 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+
+import controllers.protocols.Point;
+import me.tfeng.toolbox.mongodb.OplogItem;
+import me.tfeng.toolbox.mongodb.OplogItemHandler;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * In-memory copy of the points in the collection, loaded at startup and then kept up to date from the inserts, deletes
+ * and drops in the oplog, from which {@link PointsImpl#getNearestPoints(Point, int)} is answered without querying the
+ * database. The points are kept in a grid of square cells, which is searched in rings of cells around the given point.
+ *
+ * <p>Points inserted through this server are expected from the time they are sent. Once their inserts are
+ * acknowledged, they are kept in a separate grid of pending points, which is searched together with the replica until
+ * they appear in the oplog. The replica is stale while the oldest expected insert or drop has not appeared;
+ * when that has lasted for more than {@code mongodb-example.replica-max-staleness-ms}, queries go to the database
+ * again and the replica is reloaded, which settles all the earlier expectations. The staleness is checked on every
+ * query, expected insert and oplog item, so the expectations are dropped even when nothing is queried. Oplog items
+ * that arrive while the replica is loaded are applied afterwards.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@Component
+@ManagedResource
+public class PointReplica implements InitializingBean, OplogItemHandler {
+
+  private static class Expectation {
+
+    private boolean acknowledged;
+
+    private final ScannedPoint point;
+
+    private final long time = System.nanoTime();
+
+    public Expectation(ScannedPoint point) {
+      this.point = point;
+    }
+  }
+
+  private static class Index {
+
+    private final Map<Long, List<ScannedPoint>> cells = new HashMap<>();
+
+    private final double cellSize;
+
+    private int maxColumn = Integer.MIN_VALUE;
+
+    private int maxRow = Integer.MIN_VALUE;
+
+    private int minColumn = Integer.MAX_VALUE;
+
+    private int minRow = Integer.MAX_VALUE;
+
+    private final Map<Object, ScannedPoint> points = new HashMap<>();
+
+    public Index(double cellSize) {
+      this.cellSize = cellSize;
+    }
+
+    public void clear() {
+      cells.clear();
+      points.clear();
+    }
+
+    public boolean contains(Object id) {
+      return points.containsKey(id);
+    }
+
+    public void put(ScannedPoint point) {
+      remove(point.getId());
+      points.put(point.getId(), point);
+      int column = getCell(point.getX());
+      int row = getCell(point.getY());
+      cells.computeIfAbsent(getKey(column, row), key -> new ArrayList<>()).add(point);
+      minColumn = Math.min(minColumn, column);
+      maxColumn = Math.max(maxColumn, column);
+      minRow = Math.min(minRow, row);
+      maxRow = Math.max(maxRow, row);
+    }
+
+    public void remove(Object id) {
+      ScannedPoint point = points.remove(id);
+      if (point != null) {
+        long key = getKey(getCell(point.getX()), getCell(point.getY()));
+        List<ScannedPoint> cell = cells.get(key);
+        cell.remove(point);
+        if (cell.isEmpty()) {
+          cells.remove(key);
+        }
+      }
+    }
+
+    /**
+     * Offers the points to the neighbors ring by ring from the cell of the given point, until the nearest possible
+     * point in the next ring is farther than all the neighbors found. If the rings to search would contain many more
+     * cells than there are occupied cells, all the points are offered instead.
+     */
+    public void search(double x, double y, Neighbors neighbors) {
+      if (cells.isEmpty()) {
+        return;
+      }
+
+      int column = getCell(x);
+      int row = getCell(y);
+      long maxRing = Math.max(Math.max((long) column - minColumn, (long) maxColumn - column),
+          Math.max((long) row - minRow, (long) maxRow - row));
+      if ((2 * maxRing + 1) * (2 * maxRing + 1) > 4L * cells.size()) {
+        cells.values().forEach(cell -> offer(cell, x, y, neighbors));
+        return;
+      }
+
+      long firstRing = Math.max(Math.max(Math.max((long) minColumn - column, (long) column - maxColumn),
+          Math.max((long) minRow - row, (long) row - maxRow)), 0);
+      for (int ring = (int) firstRing; ring <= maxRing; ring++) {
+        double ringDistance = (ring - 1) * cellSize;
+        if (ring > 0 && neighbors.isFull() && ringDistance * ringDistance > neighbors.getFarthestDistance()) {
+          break;
+        }
+        if (ring == 0) {
+          offer(cells.get(getKey(column, row)), x, y, neighbors);
+          continue;
+        }
+        for (int i = column - ring; i <= column + ring; i++) {
+          offer(cells.get(getKey(i, row - ring)), x, y, neighbors);
+          offer(cells.get(getKey(i, row + ring)), x, y, neighbors);
+        }
+        for (int i = row - ring + 1; i < row + ring; i++) {
+          offer(cells.get(getKey(column - ring, i)), x, y, neighbors);
+          offer(cells.get(getKey(column + ring, i)), x, y, neighbors);
+        }
+      }
+    }
+
+    public int size() {
+      return points.size();
+    }
+
+    private int getCell(double coordinate) {
+      return (int) Math.max(Math.min(Math.floor(coordinate / cellSize), 1 << 30), -(1 << 30));
+    }
+
+    private long getKey(int column, int row) {
+      return (long) column << 32 | row & 0xFFFFFFFFL;
+    }
+
+    private void offer(List<ScannedPoint> cell, double x, double y, Neighbors neighbors) {
+      if (cell != null) {
+        for (ScannedPoint point : cell) {
+          neighbors.offer(getDistance(point, x, y), point);
+        }
+      }
+    }
+  }
+
+  private static final ALogger LOG = Logger.of(PointReplica.class);
+
+  private List<OplogItem> backlog;
+
+  @Value("${mongodb-example.replica-cell-size:0.01}")
+  private double cellSize;
+
+  @Value("${mongodb-example.db-collection}")
+  private String dbCollection;
+
+  @Value("${mongodb-example.db-name}")
+  private String dbName;
+
+  /**
+   * Whether an oplog item could not be applied, after which the replica must be reloaded.
+   */
+  private volatile boolean diverged;
+
+  /**
+   * The expectations of the clears that have not appeared in the oplog, in the order in which they were made.
+   */
+  private final Queue<Object> drops = new ConcurrentLinkedQueue<>();
+
+  @Value("${mongodb-example.replica:false}")
+  private boolean enabled;
+
+  private final Queue<Object> expectationOrder = new ConcurrentLinkedQueue<>();
+
+  private final Map<Object, Expectation> expectations = new ConcurrentHashMap<>();
+
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private Index index;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  @Value("${mongodb-example.replica-max-staleness-ms:1000}")
+  private long maxStalenessMillis;
+
+  @Autowired
+  private MongoClient mongoClient;
+
+  private Index pending;
+
+  private final AtomicBoolean reloading = new AtomicBoolean();
+
+  private MongoCollection<ScannedPoint> scanCollection;
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    scanCollection = mongoClient.getDatabase(dbName).getCollection(dbCollection, ScannedPoint.class)
+        .withCodecRegistry(CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(ScannedPointCodec.INSTANCE),
+            MongoClients.getDefaultCodecRegistry()));
+    if (enabled) {
+      reload();
+    }
+  }
+
+  /**
+   * Adds an expected point to the results, after its insert is acknowledged.
+   */
+  public void acknowledge(Object id) {
+    if (!enabled) {
+      return;
+    }
+
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      Expectation expectation = expectations.get(id);
+      if (expectation != null) {
+        expectation.acknowledged = true;
+        if (pending != null) {
+          pending.put(expectation.point);
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Stops expecting a point, whose insert has failed.
+   */
+  public void cancel(Object id) {
+    expectations.remove(id);
+  }
+
+  /**
+   * Expects the point with the given id to be inserted. It is not included in the results until
+   * {@link #acknowledge(Object)} is called.
+   */
+  public void expect(Object id, double x, double y) {
+    if (enabled) {
+      expectations.put(id, new Expectation(new ScannedPoint(id, x, y)));
+      expectationOrder.add(id);
+      reloadIfTooStale();
+    }
+  }
+
+  /**
+   * Expects the collection to be dropped, before the drop is sent. Queries go to the database until the drop appears
+   * in the oplog.
+   */
+  public void expectDrop() {
+    if (enabled) {
+      Object drop = new Object();
+      expectations.put(drop, new Expectation(null));
+      expectationOrder.add(drop);
+      drops.add(drop);
+    }
+  }
+
+  @ManagedAttribute
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  @ManagedAttribute
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the k nearest points, or null if they cannot be computed from the replica because it is not loaded, is
+   * too stale, or has fewer than k points.
+   */
+  public List<Point> getNearestPoints(Point from, int k) {
+    if (!enabled || k <= 0) {
+      return null;
+    }
+
+    boolean stale = false;
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      stale = index == null || diverged || isTooStale();
+      if (!stale && drops.isEmpty() && index.size() + pending.size() >= k) {
+        Neighbors neighbors = Neighbors.acquire(k);
+        index.search(from.getX(), from.getY(), neighbors);
+        pending.search(from.getX(), from.getY(), neighbors);
+        hits.incrementAndGet();
+        return neighbors.release();
+      }
+    } finally {
+      readLock.unlock();
+    }
+
+    fallbacks.incrementAndGet();
+    if (stale) {
+      reload();
+    }
+    return null;
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return index == null ? 0 : index.size();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the time since the oldest insert or drop that has been expected and has not appeared in the oplog.
+   */
+  @ManagedAttribute
+  public long getStalenessMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(getStalenessNanos());
+  }
+
+  @Override
+  public void handle(OplogItem oplogItem) {
+    if (!enabled) {
+      return;
+    }
+
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      if (backlog != null) {
+        backlog.add(oplogItem);
+      } else if (index != null) {
+        apply(index, pending, oplogItem);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    reloadIfTooStale();
+  }
+
+  private static double getCoordinate(Document document, String field) {
+    // Like ScannedPointCodec, which reads the points when the replica is loaded.
+    Object value = document.get(field);
+    return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+  }
+
+  private static double getDistance(ScannedPoint point, double x, double y) {
+    double xDistance = x - point.getX();
+    double yDistance = y - point.getY();
+    return xDistance * xDistance + yDistance * yDistance;
+  }
+
+  /**
+   * Applies an oplog item to the index. The pending points that are left after a drop have been inserted after it,
+   * because the inserts before it have appeared in the oplog earlier. An update cannot be applied without the document
+   * it changes, so it marks the replica as diverged instead, to be reloaded on the next query.
+   */
+  private void apply(Index index, Index pending, OplogItem oplogItem) {
+    Document document = oplogItem.getO();
+    switch (oplogItem.getOp()) {
+      case INSERT:
+        Object id = document.get("_id");
+        index.put(new ScannedPoint(id, getCoordinate(document, "x"), getCoordinate(document, "y")));
+        pending.remove(id);
+        expectations.remove(id);
+        break;
+      case UPDATE:
+        diverged = true;
+        break;
+      case DELETE:
+        index.remove(document.get("_id"));
+        break;
+      case COMMAND:
+        if (OplogCommands.isClear(oplogItem, dbName, dbCollection)) {
+          index.clear();
+          // With a shadow collection, a clear first renames the collection away, and is complete only when the shadow
+          // collection is renamed to it.
+          if (!(dbName + "." + dbCollection).equals(document.get("renameCollection"))) {
+            settleDrop();
+          }
+        }
+        break;
+      default:
+    }
+  }
+
+  private synchronized long getStalenessNanos() {
+    Object id;
+    while ((id = expectationOrder.peek()) != null) {
+      Expectation expectation = expectations.get(id);
+      if (expectation != null) {
+        return System.nanoTime() - expectation.time;
+      }
+      expectationOrder.poll();
+    }
+    return 0;
+  }
+
+  private boolean isTooStale() {
+    return getStalenessNanos() > TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+  }
+
+  private void reload() {
+    if (!reloading.compareAndSet(false, true)) {
+      return;
+    }
+
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      backlog = new ArrayList<>();
+      diverged = false;
+      while (!drops.isEmpty()) {
+        settleDrop();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+
+    LOG.info("Loading points into replica");
+    long startTime = System.nanoTime();
+    Index loadedIndex = new Index(cellSize);
+    scanCollection.find().forEach(loadedIndex::put, (nothing, throwable) -> {
+      writeLock.lock();
+      try {
+        if (throwable == null) {
+          Index loadedPending = new Index(cellSize);
+          backlog.forEach(oplogItem -> apply(loadedIndex, loadedPending, oplogItem));
+          expectations.keySet().removeIf(loadedIndex::contains);
+          expectations.values().removeIf(expectation -> expectation.time < startTime);
+          expectations.values().stream()
+              .filter(expectation -> expectation.acknowledged)
+              .forEach(expectation -> loadedPending.put(expectation.point));
+          index = loadedIndex;
+          pending = loadedPending;
+          LOG.info("Loaded " + index.size() + " points into replica");
+        } else {
+          index = null;
+          pending = null;
+          LOG.error("Unable to load points into replica", throwable);
+        }
+        backlog = null;
+      } finally {
+        writeLock.unlock();
+        reloading.set(false);
+      }
+    });
+  }
+
+  /**
+   * Settles the expectation of the oldest clear that has not appeared in the oplog.
+   */
+  private void settleDrop() {
+    Object drop = drops.poll();
+    if (drop != null) {
+      expectations.remove(drop);
+    }
+  }
+
+  /**
+   * Reloads the replica once the oldest expectation is too old, without waiting for a query, so that the expectations
+   * that have been settled are dropped from the queue, and those that will never be settled do not accumulate.
+   */
+  private void reloadIfTooStale() {
+    if (isTooStale()) {
+      reload();
+    }
+  }
+}
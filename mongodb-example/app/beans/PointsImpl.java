@@ -21,137 +21,377 @@
 package beans;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Lists;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoQueryException;
+import com.mongodb.ReadPreference;
 import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.FindIterable;
 import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
 import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.Sorts;
 
 import controllers.protocols.KTooLargeError;
 import controllers.protocols.Point;
 import controllers.protocols.PointsClient;
 import me.tfeng.toolbox.mongodb.RecordConverter;
+import play.Logger;
+import play.Logger.ALogger;
 
 /**
+ * When {@code mongodb-example.shadow-collection} is set, {@link #clear()} does not drop the collection. It renames an
+ * empty shadow collection, which is created with the indexes in advance, to the name of the collection, and then drops
+ * the replaced collection and creates the next shadow collection in the background.
+ *
  * @author Thomas Feng (huining.feng@gmail.com)
  */
 @Component("points")
 public class PointsImpl implements InitializingBean, PointsClient {
 
-  private static class DescendingPointComparator implements Comparator<Point> {
-
-    private final Point from;
+  private static class ScanBoundaries {
 
-    public DescendingPointComparator(Point from) {
-      this.from = from;
-    }
+    private final long count;
 
-    @Override
-    public int compare(Point point1, Point point2) {
-      return - Double.compare(distanceSquare(from, point1), distanceSquare(from, point2));
-    }
+    private final List<Bson> filters;
 
-    private double distanceSquare(Point point1, Point point2) {
-      double xDistance = point1.getX() - point2.getX();
-      double yDistance = point1.getY() - point2.getY();
-      return xDistance * xDistance + yDistance * yDistance;
+    public ScanBoundaries(long count, List<Bson> filters) {
+      this.count = count;
+      this.filters = filters;
     }
   }
 
+  private static final String LOCATION = "location";
+
+  private static final ALogger LOG = Logger.of(PointsImpl.class);
+
+  private static final int NAMESPACE_NOT_FOUND = 26;
+
+  private static final int SCAN_SAMPLES_PER_CURSOR = 100;
+
+  private static final String SHADOW_SUFFIX = ".shadow";
+
+  private static final String TRASH_INFIX = ".trash.";
+
+  @Autowired
+  private NearestPointsCache cache;
+
+  @Value("${mongodb-example.clear-j:false}")
+  private boolean clearWriteConcernJ;
+
+  @Value("${mongodb-example.clear-w:1}")
+  private String clearWriteConcernW;
+
   private MongoCollection<Document> collection;
 
+  private MongoDatabase database;
+
   @Value("${mongodb-example.db-collection}")
   private String dbCollection;
 
   @Value("${mongodb-example.db-name}")
   private String dbName;
 
+  @Value("${mongodb-example.geo-index:false}")
+  private boolean geoIndex;
+
+  @Value("${mongodb-example.geo-index-max:180.0}")
+  private double geoIndexMax;
+
+  @Value("${mongodb-example.geo-index-min:-180.0}")
+  private double geoIndexMin;
+
+  @Autowired
+  private InsertBuffer insertBuffer;
+
   @Autowired
   private MongoClient mongoClient;
 
-  private long startTime;
+  @Autowired
+  private PointCounter pointCounter;
+
+  private MongoCollection<Document> readCollection;
+
+  @Value("${mongodb-example.read-preference:primary}")
+  private String readPreference;
+
+  @Autowired
+  private PointReplica replica;
+
+  @Value("${mongodb-example.scan-batch-size:0}")
+  private int scanBatchSize;
+
+  private volatile ScanBoundaries scanBoundaries;
+
+  private MongoCollection<ScannedPoint> scanCollection;
+
+  @Value("${mongodb-example.scan-cursors:1}")
+  private int scanCursors;
+
+  private MongoCollection<Document> shadow;
+
+  @Value("${mongodb-example.shadow-collection:false}")
+  private boolean shadowCollection;
+
+  private CompletionStage<Void> shadowReady;
 
   @Override
   public CompletionStage<Void> addPoint(Point point) {
-    MongoCollection<Document> collection = mongoClient.getDatabase(dbName).getCollection(dbCollection);
-    CompletableFuture<Void> future = new CompletableFuture<>();
-    collection.insertOne(RecordConverter.toDocument(point), getSingleResultCallback(future));
-    return future;
+    Document document = RecordConverter.toDocument(point);
+    Object id = document.get("_id");
+    if (id == null) {
+      id = new ObjectId();
+      document.put("_id", id);
+    }
+    if (geoIndex) {
+      document.append(LOCATION, Arrays.asList(point.getX(), point.getY()));
+    }
+
+    Object insertedId = id;
+    replica.expect(insertedId, point.getX(), point.getY());
+    return insertBuffer.insert(document).whenComplete((nothing, throwable) -> {
+      if (throwable == null) {
+        replica.acknowledge(insertedId);
+      } else {
+        replica.cancel(insertedId);
+      }
+      cache.invalidate();
+    });
   }
 
   @Override
   public void afterPropertiesSet() throws Exception {
-    collection = mongoClient.getDatabase(dbName).getCollection(dbCollection);
-    startTime = System.currentTimeMillis();
+    database = mongoClient.getDatabase(dbName)
+        .withWriteConcern(WriteConcerns.of(clearWriteConcernW, clearWriteConcernJ));
+    collection = database.getCollection(dbCollection);
+    readCollection = collection.withReadPreference(ReadPreference.valueOf(readPreference));
+    scanCollection = readCollection.withDocumentClass(ScannedPoint.class).withCodecRegistry(
+        CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(ScannedPointCodec.INSTANCE),
+            MongoClients.getDefaultCodecRegistry()));
+    if (shadowCollection) {
+      shadow = database.getCollection(dbCollection + SHADOW_SUFFIX);
+      shadowReady = dropTrashCollections().thenCompose(nothing -> prepareShadowCollection());
+    }
     clear();
   }
 
   @Override
   public CompletionStage<Void> clear() {
-    CompletableFuture<Void> future = new CompletableFuture<>();
-    collection.drop(getSingleResultCallback(future));
-    return future;
+    replica.expectDrop();
+    pointCounter.expectClear();
+    CompletionStage<Void> future;
+    if (shadowCollection) {
+      future = swapShadowCollection();
+    } else {
+      CompletableFuture<Void> dropFuture = new CompletableFuture<>();
+      collection.drop(getSingleResultCallback(dropFuture));
+      future = geoIndex ? dropFuture.thenCompose(nothing -> createGeoIndex(collection)) : dropFuture;
+    }
+    return future
+        .thenRun(() -> scanBoundaries = null)
+        .whenComplete((nothing, throwable) -> {
+          if (throwable != null) {
+            pointCounter.cancelClear();
+          }
+          cache.invalidate();
+        });
   }
 
   @Override
   public CompletionStage<List<Point>> getNearestPoints(Point from, int k) {
-    CompletableFuture<Void> checkCountFuture = new CompletableFuture<>();
-    collection.count((count, throwable) -> {
+    List<Point> cachedPoints = cache.get(from, k);
+    if (cachedPoints != null) {
+      return CompletableFuture.completedFuture(cachedPoints);
+    }
+
+    long version = cache.getVersion();
+    List<Point> replicaPoints = replica.getNearestPoints(from, k);
+    if (replicaPoints != null) {
+      cache.put(from, k, replicaPoints, version);
+      return CompletableFuture.completedFuture(replicaPoints);
+    }
+
+    if (geoIndex) {
+      return getNearestPointsWithGeoIndex(from, k, version);
+    }
+
+    return getNearestPointsByScanning(from, k, version);
+  }
+
+  /**
+   * Checks that there are at least k points. The count from {@link PointCounter} may not include the latest inserts
+   * yet, so the collection is counted only if that count is too small.
+   */
+  private CompletionStage<Void> checkCount(int k) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    if (pointCounter.getCount() >= k) {
+      future.complete(null);
+      return future;
+    }
+
+    readCollection.count((count, throwable) -> {
       if (throwable == null) {
         if (count < k) {
-          checkCountFuture.completeExceptionally(KTooLargeError.newBuilder().setValue("k is too large").setK(k).build());
+          future.completeExceptionally(KTooLargeError.newBuilder().setValue("k is too large").setK(k).build());
         } else {
-          checkCountFuture.complete(null);
+          future.complete(null);
         }
       } else {
-        checkCountFuture.completeExceptionally(throwable);
+        future.completeExceptionally(throwable);
       }
     });
+    return future;
+  }
 
-    return checkCountFuture.thenCompose(nothing -> {
-      CompletableFuture<Void> insertQueueFuture = new CompletableFuture<>();
-      PriorityQueue<Point> queue = new PriorityQueue<>(new DescendingPointComparator(from));
-      collection.find()
-          .map(document -> RecordConverter.toRecord(Point.class, document))
-          .forEach(point -> {
-            queue.add(point);
-            if (queue.size() > k) {
-              queue.poll();
-            }
-          }, getSingleResultCallback(insertQueueFuture));
+  private CompletionStage<Void> createGeoIndex(MongoCollection<Document> collection) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    IndexOptions options = new IndexOptions().min(geoIndexMin).max(geoIndexMax);
+    collection.createIndex(Indexes.geo2d(LOCATION), options, getSingleResultCallback(future));
+    return future.thenApply(name -> null);
+  }
+
+  private void dropInBackground(String name) {
+    database.getCollection(name).drop((result, throwable) -> {
+      if (throwable != null) {
+        LOG.warn("Unable to drop collection " + name, throwable);
+      }
+    });
+  }
+
+  /**
+   * Drops the replaced collections that were left behind when the server stopped before dropping them.
+   */
+  private CompletionStage<Void> dropTrashCollections() {
+    CompletableFuture<List<String>> future = new CompletableFuture<>();
+    database.listCollectionNames().into(new ArrayList<>(), getSingleResultCallback(future));
+    return future.thenAccept(names -> names.stream()
+        .filter(name -> name.startsWith(dbCollection + TRASH_INFIX))
+        .forEach(this::dropInBackground));
+  }
+
+  private CompletionStage<List<Point>> getNearestPointsByScanning(Point from, int k, long version) {
+    return checkCount(k).thenCompose(nothing -> getScanFilters()).thenCompose(filters -> {
+      List<CompletableFuture<Neighbors>> futures = new ArrayList<>(filters.size());
+      for (Bson filter : filters) {
+        futures.add(scan(filter, from, k));
+      }
 
-      return insertQueueFuture.thenApply(nothing2 -> {
-        List<Point> points = new ArrayList<>(queue.size());
-        while (!queue.isEmpty()) {
-          points.add(queue.poll());
+      return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenCompose(nothing -> {
+        Neighbors neighbors = Neighbors.acquire(k);
+        futures.forEach(future -> neighbors.merge(future.join()));
+        List<Point> points = neighbors.release();
+        CompletableFuture<List<Point>> future = new CompletableFuture<>();
+        if (points.size() < k) {
+          future.completeExceptionally(KTooLargeError.newBuilder().setValue("k is too large").setK(k).build());
+        } else {
+          cache.put(from, k, points, version);
+          future.complete(points);
         }
-        return Lists.reverse(points);
+        return future;
       });
     });
   }
 
-  protected CompletionStage<Double> calculatePointsPerSecond() {
-    long current = System.currentTimeMillis();
-    return countPoints().thenApply(points -> (double) points * 1000 / (current - startTime));
-  }
+  private CompletionStage<List<Point>> getNearestPointsWithGeoIndex(Point from, int k, long version) {
+    if (k <= 0) {
+      return CompletableFuture.completedFuture(new ArrayList<>());
+    }
 
-  protected CompletionStage<Long> countPoints() {
-    CompletableFuture<Long> future = new CompletableFuture<>();
-    collection.count(getSingleResultCallback(future));
+    CompletableFuture<List<Point>> future = new CompletableFuture<>();
+    readCollection.find(Filters.near(LOCATION, from.getX(), from.getY(), null, null))
+        .projection(Projections.exclude(LOCATION))
+        .limit(k)
+        .into(new ArrayList<>(k), (documents, throwable) -> {
+          if (throwable instanceof MongoQueryException) {
+            // Without a shadow collection, the 2d index does not exist between the drop and its creation in clear().
+            getNearestPointsByScanning(from, k, version).whenComplete((points, e) -> {
+              if (e == null) {
+                future.complete(points);
+              } else {
+                future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+              }
+            });
+          } else if (throwable != null) {
+            future.completeExceptionally(throwable);
+          } else if (documents.size() < k) {
+            future.completeExceptionally(KTooLargeError.newBuilder().setValue("k is too large").setK(k).build());
+          } else {
+            List<Point> points = new ArrayList<>(k);
+            for (Document document : documents) {
+              points.add(RecordConverter.toRecord(Point.class, document));
+            }
+            cache.put(from, k, points, version);
+            future.complete(points);
+          }
+        });
     return future;
   }
 
+  /**
+   * Returns the filters of the {@code _id} ranges to scan with separate cursors. The boundaries of the ranges are the
+   * quantiles of a {@code $sample} of {@value #SCAN_SAMPLES_PER_CURSOR} {@code _id}s per cursor, so the ranges hold
+   * about the same numbers of points, and finding them takes the same time for any size of the collection. (MongoDB
+   * reads the whole collection for a sample of more than 5% of it, which only happens for small collections.) The
+   * boundaries are found again only when the number of points has changed by more than a tenth. The first range
+   * matches all the documents not matched by the others, so the ranges always cover the whole collection.
+   */
+  private CompletionStage<List<Bson>> getScanFilters() {
+    long count = pointCounter.getCount();
+    ScanBoundaries boundaries = scanBoundaries;
+    if (scanCursors <= 1) {
+      return CompletableFuture.completedFuture(Collections.singletonList(new Document()));
+    } else if (boundaries != null && Math.abs(count - boundaries.count) <= boundaries.count / 10) {
+      return CompletableFuture.completedFuture(boundaries.filters);
+    }
+
+    List<Bson> pipeline = Arrays.asList(
+        Aggregates.sample(scanCursors * SCAN_SAMPLES_PER_CURSOR),
+        Aggregates.project(Projections.include("_id")),
+        Aggregates.sort(Sorts.ascending("_id")));
+    CompletableFuture<List<Document>> future = new CompletableFuture<>();
+    readCollection.aggregate(pipeline).into(new ArrayList<>(), getSingleResultCallback(future));
+    return future.thenApply(samples -> {
+      List<Object> ids = IntStream.range(1, samples.isEmpty() ? 0 : scanCursors)
+          .mapToObj(i -> samples.get(i * samples.size() / scanCursors).get("_id"))
+          .distinct()
+          .collect(Collectors.toList());
+      List<Bson> filters = new ArrayList<>(ids.size() + 1);
+      filters.add(ids.isEmpty() ? new Document() : Filters.not(Filters.gte("_id", ids.get(0))));
+      for (int i = 0; i < ids.size(); i++) {
+        filters.add(i + 1 < ids.size()
+            ? Filters.and(Filters.gte("_id", ids.get(i)), Filters.lt("_id", ids.get(i + 1)))
+            : Filters.gte("_id", ids.get(i)));
+      }
+      scanBoundaries = new ScanBoundaries(count, filters);
+      return filters;
+    });
+  }
+
   private <T> SingleResultCallback<T> getSingleResultCallback(CompletableFuture<T> future) {
     return (result, throwable) -> {
       if (throwable == null) {
@@ -161,4 +401,69 @@ public class PointsImpl implements InitializingBean, PointsClient {
       }
     };
   }
+
+  private CompletionStage<Void> prepareShadowCollection() {
+    CompletableFuture<Void> dropFuture = new CompletableFuture<>();
+    shadow.drop(getSingleResultCallback(dropFuture));
+    CompletionStage<Void> future = dropFuture.thenCompose(nothing -> {
+      CompletableFuture<Void> createFuture = new CompletableFuture<>();
+      database.createCollection(dbCollection + SHADOW_SUFFIX, getSingleResultCallback(createFuture));
+      return createFuture;
+    });
+    return geoIndex ? future.thenCompose(nothing -> createGeoIndex(shadow)) : future;
+  }
+
+  /**
+   * Renames the collection, and returns false if it does not exist.
+   */
+  private CompletionStage<Boolean> rename(MongoCollection<Document> collection, String name, boolean dropTarget) {
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
+    collection.renameCollection(new MongoNamespace(dbName, name), new RenameCollectionOptions().dropTarget(dropTarget),
+        (result, throwable) -> {
+          if (throwable == null) {
+            future.complete(true);
+          } else if (throwable instanceof MongoCommandException
+              && ((MongoCommandException) throwable).getErrorCode() == NAMESPACE_NOT_FOUND) {
+            future.complete(false);
+          } else {
+            future.completeExceptionally(throwable);
+          }
+        });
+    return future;
+  }
+
+  private CompletableFuture<Neighbors> scan(Bson filter, Point from, int k) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    Neighbors neighbors = Neighbors.acquire(k);
+    FindIterable<ScannedPoint> iterable = scanCollection.find(filter).projection(Projections.include("x", "y"));
+    if (scanBatchSize > 0) {
+      iterable.batchSize(scanBatchSize);
+    }
+    iterable.forEach(point -> {
+      double xDistance = from.getX() - point.getX();
+      double yDistance = from.getY() - point.getY();
+      neighbors.offer(xDistance * xDistance + yDistance * yDistance, point);
+    }, getSingleResultCallback(future));
+    return future.thenApply(nothing -> neighbors);
+  }
+
+  /**
+   * Moves the collection out of the way, and renames the shadow collection to its name once the shadow collection is
+   * ready. If points are inserted in between, the collection created for them is replaced too. The clears are applied
+   * in the order in which they are made.
+   */
+  private synchronized CompletionStage<Void> swapShadowCollection() {
+    String trashName = dbCollection + TRASH_INFIX + new ObjectId();
+    CompletionStage<Boolean> trashed = shadowReady.thenCompose(nothing -> rename(collection, trashName, false));
+    CompletionStage<Void> future = trashed
+        .thenCompose(nothing -> rename(shadow, dbCollection, true))
+        .thenCompose(renamed -> trashed)
+        .thenAccept(renamed -> {
+          if (renamed) {
+            dropInBackground(trashName);
+          }
+        });
+    shadowReady = future.handle((nothing, throwable) -> null).thenCompose(nothing -> prepareShadowCollection());
+    return future;
+  }
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import controllers.protocols.Point;
+
+/**
+ * The id and coordinates of a point read by a scan of the collection, decoded by {@link ScannedPointCodec} without
+ * creating a {@link org.bson.Document}, or kept by {@link PointReplica}. A {@link Point} is created only for the points
+ * returned from a query.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class ScannedPoint {
+
+  private final Object id;
+
+  private final double x;
+
+  private final double y;
+
+  public ScannedPoint(Object id, double x, double y) {
+    this.id = id;
+    this.x = x;
+    this.y = y;
+  }
+
+  public Object getId() {
+    return id;
+  }
+
+  public double getX() {
+    return x;
+  }
+
+  public double getY() {
+    return y;
+  }
+
+  public Point toPoint() {
+    return Point.newBuilder().setId(id == null ? null : id.toString()).setX(x).setY(y).build();
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Decodes the {@code _id}, {@code x} and {@code y} fields of a document straight from the BSON reader into a
+ * {@link ScannedPoint}, skipping any other fields.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+class ScannedPointCodec implements Codec<ScannedPoint> {
+
+  public static final ScannedPointCodec INSTANCE = new ScannedPointCodec();
+
+  @Override
+  public ScannedPoint decode(BsonReader reader, DecoderContext decoderContext) {
+    Object id = null;
+    double x = 0.0;
+    double y = 0.0;
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      switch (reader.readName()) {
+        case "_id":
+          id = readId(reader);
+          break;
+        case "x":
+          x = readNumber(reader);
+          break;
+        case "y":
+          y = readNumber(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return new ScannedPoint(id, x, y);
+  }
+
+  @Override
+  public void encode(BsonWriter writer, ScannedPoint value, EncoderContext encoderContext) {
+    throw new UnsupportedOperationException("Scanned points are only read");
+  }
+
+  @Override
+  public Class<ScannedPoint> getEncoderClass() {
+    return ScannedPoint.class;
+  }
+
+  private Object readId(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case OBJECT_ID:
+        return reader.readObjectId();
+      case STRING:
+        return reader.readString();
+      default:
+        reader.skipValue();
+        return null;
+    }
+  }
+
+  private double readNumber(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case DOUBLE:
+        return reader.readDouble();
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      default:
+        reader.skipValue();
+        return 0.0;
+    }
+  }
+}
@@ -20,36 +20,77 @@
 
 package beans;
 
-import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import me.tfeng.toolbox.mongodb.OplogItem;
 import me.tfeng.toolbox.mongodb.OplogItemHandler;
+import me.tfeng.toolbox.mongodb.OplogItemType;
 import play.Logger;
 import play.Logger.ALogger;
 
 /**
+ * Logs the number of points and the rate of inserts, once every {@code mongodb-example.status-interval-ms} in which
+ * there are changes. The oplog listener thread only increments counters, and the status is logged from a thread of
+ * its own.
+ *
  * @author Thomas Feng (huining.feng@gmail.com)
  */
 @Component
-public class StatusReporter implements OplogItemHandler {
+public class StatusReporter implements DisposableBean, InitializingBean, OplogItemHandler {
 
   private static final ALogger LOG = Logger.of(StatusReporter.class);
 
+  private final AtomicLong inserts = new AtomicLong();
+
+  @Value("${mongodb-example.status-interval-ms:10000}")
+  private long intervalMillis;
+
+  private final AtomicLong items = new AtomicLong();
+
+  private long lastReportTime;
+
   @Autowired
-  private PointsImpl points;
+  private PointCounter pointCounter;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    lastReportTime = System.nanoTime();
+    scheduler.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    scheduler.shutdown();
+  }
 
   @Override
   public void handle(OplogItem oplogItem) {
-    CompletionStage<Long> points = this.points.countPoints();
-    CompletionStage<Double> pointsPerSecond = this.points.calculatePointsPerSecond();
-    try {
-      LOG.info("Storage status: " + points.toCompletableFuture().get() + " points; "
-          + String.format("%.3f", pointsPerSecond.toCompletableFuture().get()) + " points/sec");
-    } catch (Exception e) {
-      LOG.error("Unable to get status", e);
+    items.incrementAndGet();
+    if (oplogItem.getOp() == OplogItemType.INSERT) {
+      inserts.incrementAndGet();
+    }
+  }
+
+  private void report() {
+    long current = System.nanoTime();
+    long items = this.items.getAndSet(0);
+    long inserts = this.inserts.getAndSet(0);
+    double seconds = (current - lastReportTime) / 1e9;
+    lastReportTime = current;
+    if (items > 0) {
+      LOG.info("Storage status: " + pointCounter.getCount() + " points; "
+          + String.format("%.3f", inserts / seconds) + " points/sec");
     }
   }
 }
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package beans;
+
+import com.mongodb.WriteConcern;
+
+/**
+ * Creates write concerns from the {@code w} and {@code j} options set in {@code mongodb.properties}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+final class WriteConcerns {
+
+  private WriteConcerns() {
+  }
+
+  /**
+   * Returns the write concern that waits for the given number of servers, or for the servers in the given tag set or
+   * "majority", and optionally for the journal.
+   */
+  public static WriteConcern of(String w, boolean journal) {
+    WriteConcern writeConcern;
+    try {
+      writeConcern = new WriteConcern(Integer.parseInt(w));
+    } catch (NumberFormatException e) {
+      writeConcern = new WriteConcern(w);
+    }
+    return writeConcern.withJournal(journal);
+  }
+}
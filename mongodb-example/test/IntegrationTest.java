@@ -19,24 +19,39 @@
  */
 
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
 import static org.hamcrest.core.IsNot.not;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static play.test.Helpers.running;
 import static play.test.Helpers.testServer;
 
 import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.bson.types.ObjectId;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.mongodb.MongoWriteException;
+
 import akka.stream.javadsl.StreamConverters;
+import beans.InsertBuffer;
+import beans.NearestPointsCache;
+import beans.PointReplica;
+import beans.PointsImpl;
 import controllers.protocols.Point;
 import controllers.protocols.Points;
 import me.tfeng.playmods.spring.ApplicationLoader;
 import me.tfeng.toolbox.avro.AvroHelper;
+import me.tfeng.toolbox.spring.ApplicationManager;
 import play.Application;
 import play.ApplicationLoader.Context;
 import play.Environment;
@@ -58,6 +73,143 @@ public class IntegrationTest {
     application = new ApplicationLoader().load(new Context(Environment.simple()));
   }
 
+  @After
+  public void teardown() {
+    System.clearProperty("mongodb-example.insert-batch-size");
+    System.clearProperty("mongodb-example.insert-capacity");
+    System.clearProperty("mongodb-example.insert-linger-ms");
+    System.clearProperty("mongodb-example.replica");
+    System.clearProperty("mongodb-example.scan-cursors");
+  }
+
+  @Test
+  public void testCachedNearestPoints() {
+    running(testServer(PORT, application), () -> {
+      try {
+        StandaloneAhcWSClient client = application.injector().instanceOf(StandaloneAhcWSClient.class);
+        NearestPointsCache cache =
+            application.injector().instanceOf(ApplicationManager.class).getBean(NearestPointsCache.class);
+        StandaloneWSResponse response;
+        List<Point> nearestPoints;
+
+        post(client, "/points/addPoint", "{\"point\": {\"x\": 1.0, \"y\": 2.0}}");
+        post(client, "/points/addPoint", "{\"point\": {\"x\": 3.0, \"y\": 0.5}}");
+        long hits = cache.getHits();
+
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 2}");
+        assertThat(response.getStatus(), is(200));
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        assertThat(response.getStatus(), is(200));
+        nearestPoints = AvroHelper.toRecord(Points.PROTOCOL.getMessages().get("getNearestPoints").getResponse(),
+            response.getBody());
+        assertThat(nearestPoints.size(), is(1));
+        assertThat(nearestPoints.get(0).getX(), is(1.0));
+        assertThat(cache.getHits() - hits, is(1L));
+
+        post(client, "/points/addPoint", "{\"point\": {\"x\": 0.5, \"y\": 0.5}}");
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        nearestPoints = AvroHelper.toRecord(Points.PROTOCOL.getMessages().get("getNearestPoints").getResponse(),
+            response.getBody());
+        assertThat(nearestPoints.get(0).getX(), is(0.5));
+        assertThat(cache.getHits() - hits, is(1L));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testClear() {
+    running(testServer(PORT, application), () -> {
+      try {
+        StandaloneAhcWSClient client = application.injector().instanceOf(StandaloneAhcWSClient.class);
+        StandaloneWSResponse response;
+        List<Point> nearestPoints;
+
+        post(client, "/points/addPoint", "{\"point\": {\"x\": 1.0, \"y\": 2.0}}");
+        response = post(client, "/points/clear", "");
+        assertThat(response.getStatus(), is(200));
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        assertThat(response.getStatus(), is(400));
+
+        response = post(client, "/points/addPoint", "{\"point\": {\"x\": 3.0, \"y\": 0.5}}");
+        assertThat(response.getStatus(), is(200));
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        assertThat(response.getStatus(), is(200));
+        nearestPoints = AvroHelper.toRecord(Points.PROTOCOL.getMessages().get("getNearestPoints").getResponse(),
+            response.getBody());
+        assertThat(nearestPoints.size(), is(1));
+        assertThat(nearestPoints.get(0).getX(), is(3.0));
+
+        response = post(client, "/points/clear", "");
+        assertThat(response.getStatus(), is(200));
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        assertThat(response.getStatus(), is(400));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testInsertBatchWithDuplicateId() {
+    // The three points are inserted in one batch, as soon as the last of them is added.
+    System.setProperty("mongodb-example.insert-batch-size", "3");
+    System.setProperty("mongodb-example.insert-linger-ms", "10000");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    running(testServer(PORT, application), () -> {
+      try {
+        ApplicationManager applicationManager = application.injector().instanceOf(ApplicationManager.class);
+        InsertBuffer insertBuffer = applicationManager.getBean(InsertBuffer.class);
+        PointsImpl points = applicationManager.getBean(PointsImpl.class);
+        String id = new ObjectId().toHexString();
+
+        points.clear().toCompletableFuture().get();
+        long batches = insertBuffer.getBatches();
+        CompletableFuture<Void> first = points.addPoint(createPoint(id, 1.0, 2.0)).toCompletableFuture();
+        CompletableFuture<Void> duplicate = points.addPoint(createPoint(id, 3.0, 0.5)).toCompletableFuture();
+        CompletableFuture<Void> other = points.addPoint(createPoint(null, 2.1, 1.8)).toCompletableFuture();
+
+        first.get();
+        other.get();
+        try {
+          duplicate.get();
+          fail("Exception is expected");
+        } catch (ExecutionException e) {
+          assertThat(e.getCause(), instanceOf(MongoWriteException.class));
+        }
+        assertThat(insertBuffer.getBatches() - batches, is(1L));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testInsertBufferFull() {
+    // The first point holds the only room in the buffer until its batch is sent, after 2 seconds.
+    System.setProperty("mongodb-example.insert-capacity", "1");
+    System.setProperty("mongodb-example.insert-linger-ms", "2000");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    running(testServer(PORT, application), () -> {
+      try {
+        PointsImpl points = application.injector().instanceOf(ApplicationManager.class).getBean(PointsImpl.class);
+
+        CompletableFuture<Void> first = points.addPoint(createPoint(null, 1.0, 2.0)).toCompletableFuture();
+        CompletableFuture<Void> second = points.addPoint(createPoint(null, 3.0, 0.5)).toCompletableFuture();
+        try {
+          second.get();
+          fail("Exception is expected");
+        } catch (ExecutionException e) {
+          assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        first.get();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
   @Test
   public void testOneNearestPoint() {
     running(testServer(PORT, application), () -> {
@@ -88,6 +240,102 @@ public class IntegrationTest {
     });
   }
 
+  @Test
+  public void testReplica() {
+    // The replica is off by default, because it needs the oplog of a replica set.
+    System.setProperty("mongodb-example.replica", "true");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    running(testServer(PORT, application), () -> {
+      try {
+        StandaloneAhcWSClient client = application.injector().instanceOf(StandaloneAhcWSClient.class);
+        PointReplica replica =
+            application.injector().instanceOf(ApplicationManager.class).getBean(PointReplica.class);
+        StandaloneWSResponse response;
+        List<Point> nearestPoints;
+        long fallbacks;
+
+        post(client, "/points/clear", "");
+        fallbacks = replica.getFallbacks();
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.0, \"y\": 0.0}, \"k\": 1}");
+        assertThat(response.getStatus(), is(400));
+        assertThat(replica.getFallbacks() - fallbacks, is(1L));
+
+        // A point whose insert is never acknowledged is not returned.
+        post(client, "/points/addPoint", "{\"point\": {\"x\": 1.0, \"y\": 2.0}}");
+        replica.expect(new ObjectId(), 0.0, 0.0);
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.1, \"y\": 0.1}, \"k\": 1}");
+        assertThat(response.getStatus(), is(200));
+        nearestPoints = AvroHelper.toRecord(Points.PROTOCOL.getMessages().get("getNearestPoints").getResponse(),
+            response.getBody());
+        assertThat(nearestPoints.size(), is(1));
+        assertThat(nearestPoints.get(0).getX(), is(1.0));
+
+        // Once that point has been expected for too long, queries go to the database and the replica is reloaded.
+        for (int i = 0; i < 50 && replica.getStalenessMillis() <= 1000; i++) {
+          Thread.sleep(100);
+        }
+        fallbacks = replica.getFallbacks();
+        response = post(client, "/points/getNearestPoints", "{\"from\": {\"x\": 0.2, \"y\": 0.2}, \"k\": 1}");
+        assertThat(response.getStatus(), is(200));
+        nearestPoints = AvroHelper.toRecord(Points.PROTOCOL.getMessages().get("getNearestPoints").getResponse(),
+            response.getBody());
+        assertThat(nearestPoints.get(0).getX(), is(1.0));
+        assertThat(replica.getFallbacks() - fallbacks, is(1L));
+        for (int i = 0; i < 50 && replica.getStalenessMillis() > 0; i++) {
+          Thread.sleep(100);
+        }
+        assertThat(replica.getStalenessMillis(), is(0L));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testScanCursors() {
+    // Without the replica, the nearest points are found by scanning the collection.
+    System.setProperty("mongodb-example.replica", "false");
+    System.setProperty("mongodb-example.scan-cursors", "4");
+    List<Point> froms = new ArrayList<>();
+    List<List<Point>> results = new ArrayList<>();
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    running(testServer(PORT, application), () -> {
+      try {
+        PointsImpl points = application.injector().instanceOf(ApplicationManager.class).getBean(PointsImpl.class);
+        Random random = new Random(0);
+
+        points.clear().toCompletableFuture().get();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+          Point point = createPoint(null, random.nextDouble(), random.nextDouble());
+          futures.add(points.addPoint(point).toCompletableFuture());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+        for (int i = 0; i < 10; i++) {
+          Point from = createPoint(null, random.nextDouble(), random.nextDouble());
+          froms.add(from);
+          results.add(points.getNearestPoints(from, 100).toCompletableFuture().get());
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    System.setProperty("mongodb-example.scan-cursors", "1");
+    application = new ApplicationLoader().load(new Context(Environment.simple()));
+    running(testServer(PORT, application), () -> {
+      try {
+        PointsImpl points = application.injector().instanceOf(ApplicationManager.class).getBean(PointsImpl.class);
+        for (int i = 0; i < froms.size(); i++) {
+          assertThat(points.getNearestPoints(froms.get(i), 100).toCompletableFuture().get(), is(results.get(i)));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
   @Test
   public void testThreeNearestPoints() {
     running(testServer(PORT, application), () -> {
@@ -135,6 +383,10 @@ public class IntegrationTest {
     });
   }
 
+  private Point createPoint(String id, double x, double y) {
+    return Point.newBuilder().setId(id).setX(x).setY(y).build();
+  }
+
   private StandaloneWSResponse post(StandaloneAhcWSClient client, String endpoint, String data)
       throws ExecutionException, InterruptedException {
     return client.url("http://localhost:" + PORT + endpoint)
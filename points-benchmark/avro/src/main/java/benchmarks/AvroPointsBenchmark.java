@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.AvroRemoteException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import beans.PointsImpl;
+import controllers.protocols.Point;
+import controllers.protocols.Points;
+import indexes.GridIndex;
+import indexes.KdTreeIndex;
+import indexes.LinearScanIndex;
+import indexes.PointIndex;
+import storage.SegmentedPointStore;
+
+/**
+ * Measures {@link Points#getNearestPoints(Point, int)} of the avro-example, with each of its point indexes. Run with
+ * {@code sbt "avro/jmh:run -prof gc"} to also report the allocation rate.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class AvroPointsBenchmark {
+
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int next;
+  }
+
+  private static final int ORIGINS = 1024;
+
+  private static final long SEED = 0;
+
+  @Param({Dataset.UNIFORM, Dataset.CLUSTERED})
+  public String distribution;
+
+  @Param({"KdTreeIndex", "GridIndex", "LinearScanIndex"})
+  public String index;
+
+  @Param({"1", "10", "100"})
+  public int k;
+
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  private AnnotationConfigApplicationContext context;
+
+  private Point[] origins;
+
+  private Points points;
+
+  @Benchmark
+  public List<Point> getNearestPoints(Cursor cursor) throws AvroRemoteException {
+    return points.getNearestPoints(origins[cursor.next++ & (ORIGINS - 1)], k);
+  }
+
+  @Setup
+  public void setUp() throws AvroRemoteException {
+    context = new AnnotationConfigApplicationContext();
+    context.getBeanFactory().registerSingleton("pointIndex", createIndex());
+    context.register(PointsImpl.class);
+    context.refresh();
+    points = context.getBean(Points.class);
+
+    Dataset dataset = Dataset.generate(distribution, size, SEED);
+    List<Point> batch = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      batch.add(Point.newBuilder().setX(dataset.getX(i)).setY(dataset.getY(i)).build());
+    }
+    points.addPoints(batch);
+
+    Dataset originDataset = dataset.sample(ORIGINS, SEED + 1);
+    origins = new Point[ORIGINS];
+    for (int i = 0; i < ORIGINS; i++) {
+      origins[i] = Point.newBuilder().setX(originDataset.getX(i)).setY(originDataset.getY(i)).build();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  private PointIndex createIndex() {
+    switch (index) {
+      case "GridIndex":
+        // About 4 points per cell if the points were uniformly distributed.
+        return new GridIndex(new SegmentedPointStore(), Math.sqrt(4.0 / size));
+      case "KdTreeIndex":
+        return new KdTreeIndex(new SegmentedPointStore());
+      case "LinearScanIndex":
+        return new LinearScanIndex(new SegmentedPointStore());
+      default:
+        throw new IllegalArgumentException("Unknown index " + index);
+    }
+  }
+}
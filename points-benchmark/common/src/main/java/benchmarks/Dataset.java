@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.util.Random;
+
+/**
+ * Coordinates of points drawn from one of the distributions that the benchmarks are run with.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+public class Dataset {
+
+  public static final String CLUSTERED = "clustered";
+
+  public static final String UNIFORM = "uniform";
+
+  private static final int CLUSTERS = 100;
+
+  private static final double CLUSTER_DEVIATION = 0.01;
+
+  private final double[] centerXs;
+
+  private final double[] centerYs;
+
+  private final String distribution;
+
+  private final double[] xs;
+
+  private final double[] ys;
+
+  public static Dataset generate(String distribution, int size, long seed) {
+    Random random = new Random(seed);
+    double[] centerXs = null;
+    double[] centerYs = null;
+    if (CLUSTERED.equals(distribution)) {
+      centerXs = new double[CLUSTERS];
+      centerYs = new double[CLUSTERS];
+      for (int i = 0; i < CLUSTERS; i++) {
+        centerXs[i] = random.nextDouble();
+        centerYs[i] = random.nextDouble();
+      }
+    }
+    return draw(distribution, centerXs, centerYs, size, random);
+  }
+
+  private Dataset(String distribution, double[] centerXs, double[] centerYs, double[] xs, double[] ys) {
+    this.distribution = distribution;
+    this.centerXs = centerXs;
+    this.centerYs = centerYs;
+    this.xs = xs;
+    this.ys = ys;
+  }
+
+  public double getX(int i) {
+    return xs[i];
+  }
+
+  public double getY(int i) {
+    return ys[i];
+  }
+
+  /**
+   * Returns other points drawn from the same distribution as these, around the same centers if it is clustered.
+   */
+  public Dataset sample(int size, long seed) {
+    return draw(distribution, centerXs, centerYs, size, new Random(seed));
+  }
+
+  public int size() {
+    return xs.length;
+  }
+
+  private static Dataset draw(String distribution, double[] centerXs, double[] centerYs, int size, Random random) {
+    double[] xs = new double[size];
+    double[] ys = new double[size];
+    switch (distribution) {
+      case CLUSTERED:
+        for (int i = 0; i < size; i++) {
+          int cluster = random.nextInt(CLUSTERS);
+          xs[i] = centerXs[cluster] + random.nextGaussian() * CLUSTER_DEVIATION;
+          ys[i] = centerYs[cluster] + random.nextGaussian() * CLUSTER_DEVIATION;
+        }
+        break;
+      case UNIFORM:
+        for (int i = 0; i < size; i++) {
+          xs[i] = random.nextDouble();
+          ys[i] = random.nextDouble();
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown distribution " + distribution);
+    }
+    return new Dataset(distribution, centerXs, centerYs, xs, ys);
+  }
+}
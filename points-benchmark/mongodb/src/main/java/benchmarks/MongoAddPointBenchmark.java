@@ -0,0 +1,147 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
+import com.mongodb.async.client.MongoClient;
+
+import beans.InsertBuffer;
+import beans.NearestPointsCache;
+import beans.PointCounter;
+import beans.PointReplica;
+import beans.PointsImpl;
+import controllers.protocols.Point;
+import controllers.protocols.PointsClient;
+
+/**
+ * Measures {@link PointsClient#addPoint(Point)} of the mongodb-example from many concurrent callers, against the
+ * MongoDB server configured in its {@code mongodb.properties}, for each write concern profile and connection pool
+ * size. The throughput is reported together with the distribution of the latency of each call. The collection is
+ * dropped before and after each set of parameters.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(32)
+@Warmup(iterations = 3, time = 1)
+public class MongoAddPointBenchmark {
+
+  @State(Scope.Thread)
+  public static class Coordinates {
+
+    private final Random random = new Random();
+  }
+
+  public static final String ACKNOWLEDGED = "acknowledged";
+
+  public static final String JOURNALED = "journaled";
+
+  public static final String MAJORITY = "majority";
+
+  public static final String UNACKNOWLEDGED = "unacknowledged";
+
+  @Param({"10", "100"})
+  public int maxPoolSize;
+
+  @Param({UNACKNOWLEDGED, ACKNOWLEDGED, JOURNALED, MAJORITY})
+  public String profile;
+
+  private AnnotationConfigApplicationContext context;
+
+  private PointsClient points;
+
+  @Benchmark
+  public Void addPoint(Coordinates coordinates) throws Exception {
+    Point point = Point.newBuilder().setId(null).setX(coordinates.random.nextDouble())
+        .setY(coordinates.random.nextDouble()).build();
+    return points.addPoint(point).toCompletableFuture().get();
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    Properties properties = PropertiesLoaderUtils.loadProperties(new ClassPathResource("mongodb.properties"));
+    properties.setProperty("mongodb-example.max-pool-size", Integer.toString(maxPoolSize));
+    properties.setProperty("mongodb-example.min-pool-size", Integer.toString(maxPoolSize));
+    properties.setProperty("mongodb-example.replica", "false");
+    switch (profile) {
+      case UNACKNOWLEDGED:
+        properties.setProperty("mongodb-example.insert-w", "0");
+        properties.setProperty("mongodb-example.insert-j", "false");
+        break;
+      case ACKNOWLEDGED:
+        properties.setProperty("mongodb-example.insert-w", "1");
+        properties.setProperty("mongodb-example.insert-j", "false");
+        break;
+      case JOURNALED:
+        properties.setProperty("mongodb-example.insert-w", "1");
+        properties.setProperty("mongodb-example.insert-j", "true");
+        break;
+      case MAJORITY:
+        properties.setProperty("mongodb-example.insert-w", "majority");
+        properties.setProperty("mongodb-example.insert-j", "true");
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown profile " + profile);
+    }
+    PropertySourcesPlaceholderConfigurer configurer = new PropertySourcesPlaceholderConfigurer();
+    configurer.setProperties(properties);
+    context = new AnnotationConfigApplicationContext();
+    context.addBeanFactoryPostProcessor(configurer);
+    context.getBeanFactory().registerSingleton("mongoClient", MongoClientFactory.create(properties));
+    context.register(InsertBuffer.class, NearestPointsCache.class, PointCounter.class, PointReplica.class,
+        PointsImpl.class);
+    context.refresh();
+    points = context.getBean(PointsClient.class);
+    points.clear().toCompletableFuture().get();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    points.clear().toCompletableFuture().get();
+    context.getBean(MongoClient.class).close();
+    context.close();
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.util.Properties;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+
+/**
+ * Creates the MongoDB client of the mongodb-example from the properties in its {@code mongodb.properties}, with the
+ * same connection string as its {@code application-context.xml}.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+final class MongoClientFactory {
+
+  private MongoClientFactory() {
+  }
+
+  public static MongoClient create(Properties properties) {
+    return MongoClients.create(new ConnectionString("mongodb://"
+        + properties.getProperty("mongodb-example.db-host") + ":" + properties.getProperty("mongodb-example.db-port")
+        + "/?minPoolSize=" + properties.getProperty("mongodb-example.min-pool-size")
+        + "&maxPoolSize=" + properties.getProperty("mongodb-example.max-pool-size")
+        + "&waitQueueMultiple=" + properties.getProperty("mongodb-example.wait-queue-multiple")
+        + "&waitQueueTimeoutMS=" + properties.getProperty("mongodb-example.wait-queue-timeout-ms")));
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Thomas Feng
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
+import com.mongodb.async.client.MongoClient;
+
+import beans.InsertBuffer;
+import beans.NearestPointsCache;
+import beans.PointCounter;
+import beans.PointReplica;
+import beans.PointsImpl;
+import controllers.protocols.Point;
+import controllers.protocols.PointsClient;
+
+/**
+ * Measures {@link PointsClient#getNearestPoints(Point, int)} of the mongodb-example, against the MongoDB server
+ * configured in its {@code mongodb.properties}, either scanning the collection or querying a 2d index with
+ * {@code $near}. The collection is dropped and refilled for each set of parameters. Run with
+ * {@code sbt "mongodb/jmh:run -prof gc"} to also report the allocation rate.
+ *
+ * @author Thomas Feng (huining.feng@gmail.com)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class MongoPointsBenchmark {
+
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int next;
+  }
+
+  private static final int MAX_PENDING_INSERTS = 100;
+
+  private static final int ORIGINS = 1024;
+
+  private static final long SEED = 0;
+
+  @Param({Dataset.UNIFORM, Dataset.CLUSTERED})
+  public String distribution;
+
+  @Param({"false", "true"})
+  public boolean geoIndex;
+
+  @Param({"1", "10", "100"})
+  public int k;
+
+  @Param({"false", "true"})
+  public boolean replica;
+
+  @Param({"1", "4"})
+  public int scanCursors;
+
+  @Param({"1000", "10000", "100000"})
+  public int size;
+
+  private AnnotationConfigApplicationContext context;
+
+  private Point[] origins;
+
+  private PointsClient points;
+
+  @Benchmark
+  public List<Point> getNearestPoints(Cursor cursor) throws Exception {
+    return points.getNearestPoints(origins[cursor.next++ & (ORIGINS - 1)], k).toCompletableFuture().get();
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    Properties properties = PropertiesLoaderUtils.loadProperties(new ClassPathResource("mongodb.properties"));
+    // Every query would be answered from the cache after the first round of origins.
+    properties.setProperty("mongodb-example.cache-capacity", "0");
+    properties.setProperty("mongodb-example.geo-index", Boolean.toString(geoIndex));
+    properties.setProperty("mongodb-example.replica", Boolean.toString(replica));
+    properties.setProperty("mongodb-example.scan-cursors", Integer.toString(scanCursors));
+    PropertySourcesPlaceholderConfigurer configurer = new PropertySourcesPlaceholderConfigurer();
+    configurer.setProperties(properties);
+    context = new AnnotationConfigApplicationContext();
+    context.addBeanFactoryPostProcessor(configurer);
+    context.getBeanFactory().registerSingleton("mongoClient", MongoClientFactory.create(properties));
+    context.register(InsertBuffer.class, NearestPointsCache.class, PointCounter.class, PointReplica.class,
+        PointsImpl.class);
+    context.refresh();
+    points = context.getBean(PointsClient.class);
+    points.clear().toCompletableFuture().get();
+
+    Dataset dataset = Dataset.generate(distribution, size, SEED);
+    List<CompletableFuture<Void>> inserts = new ArrayList<>(MAX_PENDING_INSERTS);
+    for (int i = 0; i < size; i++) {
+      Point point = Point.newBuilder().setId(null).setX(dataset.getX(i)).setY(dataset.getY(i)).build();
+      inserts.add(points.addPoint(point).toCompletableFuture());
+      if (inserts.size() == MAX_PENDING_INSERTS) {
+        CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get();
+        inserts.clear();
+      }
+    }
+    CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get();
+
+    Dataset originDataset = dataset.sample(ORIGINS, SEED + 1);
+    origins = new Point[ORIGINS];
+    for (int i = 0; i < ORIGINS; i++) {
+      origins[i] = Point.newBuilder().setId(null).setX(originDataset.getX(i)).setY(originDataset.getY(i)).build();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    points.clear().toCompletableFuture().get();
+    context.getBean(MongoClient.class).close();
+    context.close();
+  }
+}